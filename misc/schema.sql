@@ -1,9 +1,18 @@
+-- for the trigram indexes (like and ilike filters)
+create extension if not exists pg_trgm;
+
 create table jds_database (
   -- internal id, just exists to avoid potentially long db names in every row of jds_document and also to facilitate renaming
   id int4 not null,
   name varchar(200) collate "C" not null unique,
   -- the version of the database
   version varchar(200) collate "C" not null,
+  -- the number of (not deleted) documents and the total size of their data in bytes (as json text), with DOCUMENT_LOCK
+  -- there can be additional not yet merged changes in jds_database_statistics_delta
+  document_count int8 not null default 0,
+  data_size int8 not null default 0,
+  -- the highest version of the purged tombstones, the changes feed is incomplete before it
+  purged_version varchar(200) collate "C",
   -- TODO: authorization
   primary key (id)
 );
@@ -11,14 +20,46 @@ create table jds_database (
 create table jds_document (
   database_id int4 not null,
   id varchar(200) collate "C" not null,
-  -- the version of the document
+  -- the version of the document (for deleted documents the version of the delete)
   version varchar(200) collate "C" not null,
-  data jsonb not null,
+  -- null for deleted documents
+  data jsonb,
+  -- the size of data in bytes (as json text, when written), null for deleted documents
+  data_size int4,
+  -- deleted documents are kept as tombstones (for the changes feed) until they are purged
+  deleted_at timestamp with time zone,
   primary key (database_id, id),
+  foreign key (database_id) references jds_database (id),
+  check ((data is null) = (deleted_at is not null))
+);
+
+create index idx_jds_document_data on jds_document using gin (data jsonb_path_ops) where deleted_at is null;
+-- for purging the tombstones, only contains the tombstones
+create index idx_jds_document_deleted_at on jds_document (deleted_at) where deleted_at is not null;
+-- for the changes feed, ordered by version and id
+create index idx_jds_document_version on jds_document (database_id, version, id);
+
+-- the changes of the statistics of jds_database by writers with DOCUMENT_LOCK (updating jds_database directly would
+-- serialize them), they are merged into jds_database periodically
+create table jds_database_statistics_delta (
+  database_id int4 not null,
+  document_count int8 not null,
+  data_size int8 not null,
   foreign key (database_id) references jds_database (id)
 );
 
-create index idx_jds_document_data on jds_document using gin (data jsonb_path_ops);
+create index idx_jds_database_statistics_delta on jds_database_statistics_delta (database_id);
 
+-- the declared indexes for range filters, the postgres index (index_name) is shared by all databases that declare the same
+-- path and type, it is a partial btree index on (database_id, expression) (or a trigram gin index on the expression)
+create table jds_index (
+  database_id int4 not null,
+  path varchar(200) collate "C" not null,
+  -- string, number or trigram
+  type varchar(20) collate "C" not null,
+  index_name varchar(63) collate "C" not null,
+  primary key (database_id, path, type),
+  foreign key (database_id) references jds_database (id)
+);
 
 -- TODO: jds_attachment, jds_user?
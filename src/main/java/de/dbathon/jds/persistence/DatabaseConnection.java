@@ -7,6 +7,7 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
@@ -18,6 +19,12 @@ import javax.sql.DataSource;
  * <p>
  * No method will throw {@link SQLException}, instead the exceptions will be wrapped in
  * {@link RuntimeSqlException}.
+ * <p>
+ * The {@link PreparedStatement}s are closed directly after use, but the PostgreSQL driver keeps the
+ * corresponding server side prepared statements in a per connection cache keyed by the SQL string
+ * (see the datasource configuration in <code>application.properties</code>). So callers should
+ * always use parameters instead of including values in the SQL string, otherwise the cache will
+ * not be effective.
  */
 @ApplicationScoped
 public class DatabaseConnection {
@@ -55,6 +62,10 @@ public class DatabaseConnection {
         else if (parameter instanceof Boolean) {
           preparedStatement.setBoolean(i + 1, (Boolean) parameter);
         }
+        else if (parameter instanceof String[]) {
+          preparedStatement.setArray(i + 1,
+              preparedStatement.getConnection().createArrayOf("varchar", (String[]) parameter));
+        }
         else {
           throw new IllegalArgumentException("unsupported parameter value: " + parameter);
         }
@@ -84,40 +95,39 @@ public class DatabaseConnection {
     }
   }
 
-  private <T> List<T> executeQuery(final PreparedStatement preparedStatement, final Class<T> rowType,
-      final Class<?>[] columnTypes) throws SQLException {
-    final List<T> result = new ArrayList<>();
-    try (ResultSet resultSet = preparedStatement.executeQuery()) {
-      ResultSetMetaData metaData = null;
-      int columnCount = columnTypes != null ? columnTypes.length : 0;
-      while (resultSet.next()) {
-        if (rowType == Object[].class) {
-          if (columnTypes == null) {
-            if (metaData == null) {
-              metaData = resultSet.getMetaData();
-              columnCount = metaData.getColumnCount();
-            }
-            final Object[] row = new Object[columnCount];
-            for (int i = 0; i < columnCount; ++i) {
-              row[i] = resultSet.getObject(i + 1);
-            }
-            result.add(rowType.cast(row));
-          }
-          else {
-            // use the given columnTypes
-            final Object[] row = new Object[columnCount];
-            for (int i = 0; i < columnCount; ++i) {
-              row[i] = getColumnValue(resultSet, i + 1, columnTypes[i]);
-            }
-            result.add(rowType.cast(row));
-          }
+  private <T> T readRow(final ResultSet resultSet, final Class<T> rowType, final Class<?>[] columnTypes)
+      throws SQLException {
+    if (rowType == Object[].class) {
+      final Object[] row;
+      if (columnTypes == null) {
+        final ResultSetMetaData metaData = resultSet.getMetaData();
+        final int columnCount = metaData.getColumnCount();
+        row = new Object[columnCount];
+        for (int i = 0; i < columnCount; ++i) {
+          row[i] = resultSet.getObject(i + 1);
         }
-        else {
-          result.add(getColumnValue(resultSet, 1, rowType));
+      }
+      else {
+        // use the given columnTypes
+        row = new Object[columnTypes.length];
+        for (int i = 0; i < columnTypes.length; ++i) {
+          row[i] = getColumnValue(resultSet, i + 1, columnTypes[i]);
         }
       }
+      return rowType.cast(row);
+    }
+    else {
+      return getColumnValue(resultSet, 1, rowType);
+    }
+  }
+
+  private <T> void executeQuery(final PreparedStatement preparedStatement, final Class<T> rowType,
+      final Class<?>[] columnTypes, final Consumer<? super T> rowConsumer) throws SQLException {
+    try (ResultSet resultSet = preparedStatement.executeQuery()) {
+      while (resultSet.next()) {
+        rowConsumer.accept(readRow(resultSet, rowType, columnTypes));
+      }
     }
-    return result;
   }
 
   public <T> List<T> query(final String sql, final Class<T> rowType, final Class<?>[] columnTypes,
@@ -125,7 +135,9 @@ public class DatabaseConnection {
     return withConnection(connection -> {
       try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
         bindParameters(preparedStatement, parameters);
-        return executeQuery(preparedStatement, rowType, columnTypes);
+        final List<T> result = new ArrayList<>();
+        executeQuery(preparedStatement, rowType, columnTypes, result::add);
+        return result;
       }
     });
   }
@@ -134,6 +146,25 @@ public class DatabaseConnection {
     return query(sql, rowType, (Class<?>[]) null, parameters);
   }
 
+  /**
+   * Like {@link #query(String, Class, Class[], Object...)}, but the rows are not collected in a
+   * list, instead each row is passed to the given <code>rowConsumer</code> directly after it was
+   * read. The rows are fetched from the database in chunks of <code>fetchSize</code> rows, so the
+   * memory usage does not depend on the size of the result (this requires an active transaction,
+   * otherwise the driver will fetch all rows at once).
+   */
+  public <T> void queryStreaming(final String sql, final int fetchSize, final Class<T> rowType,
+      final Class<?>[] columnTypes, final Consumer<? super T> rowConsumer, final Object... parameters) {
+    withConnection(connection -> {
+      try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+        preparedStatement.setFetchSize(fetchSize);
+        bindParameters(preparedStatement, parameters);
+        executeQuery(preparedStatement, rowType, columnTypes, rowConsumer);
+        return null;
+      }
+    });
+  }
+
   public <T> T queryNoOrOneResult(final String sql, final Class<T> rowType, final Class<?>[] columnTypes,
       final Object... parameters) {
     final List<T> results = query(sql, rowType, columnTypes, parameters);
@@ -161,4 +192,36 @@ public class DatabaseConnection {
     });
   }
 
+  /**
+   * Executes the given statement once for each element of <code>parametersList</code> using a JDBC
+   * batch.
+   *
+   * @return the update counts, see {@link PreparedStatement#executeBatch()}
+   */
+  public int[] executeBatch(final String sql, final List<Object[]> parametersList) {
+    return withConnection(connection -> {
+      try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+        for (final Object[] parameters : parametersList) {
+          bindParameters(preparedStatement, parameters);
+          preparedStatement.addBatch();
+        }
+        return preparedStatement.executeBatch();
+      }
+    });
+  }
+
+  /**
+   * Sends a postgres notification on the given channel, it will only be delivered if and when the
+   * current transaction commits. See {@link NotificationListener}.
+   */
+  public void sendNotification(final String channel, final String payload) {
+    withConnection(connection -> {
+      try (PreparedStatement preparedStatement = connection.prepareStatement("select pg_notify(?, ?)")) {
+        bindParameters(preparedStatement, channel, payload);
+        preparedStatement.execute();
+        return null;
+      }
+    });
+  }
+
 }
@@ -0,0 +1,151 @@
+package de.dbathon.jds.persistence;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+
+/**
+ * Receives postgres notifications (see {@link DatabaseConnection#sendNotification(String, String)})
+ * using LISTEN on a dedicated connection in a background thread and passes them to the registered
+ * {@link Listener}s.
+ */
+@ApplicationScoped
+public class NotificationListener {
+
+  private static final Logger log = LoggerFactory.getLogger(NotificationListener.class);
+
+  private static final Pattern CHANNEL_PATTERN = Pattern.compile("[a-z_]+");
+
+  private static final int POLL_TIMEOUT_MILLIS = 1000;
+  private static final long RETRY_DELAY_MILLIS = 5000;
+
+  public interface Listener {
+    /**
+     * Is called in the background thread, so it should return quickly.
+     */
+    void notificationReceived(String payload);
+
+    /**
+     * Is called if notifications might have been missed, e.g. after the connection was lost.
+     */
+    void notificationsMissed();
+  }
+
+  @Inject
+  DataSource dataSource;
+
+  private final Map<String, List<Listener>> channelToListeners = new ConcurrentHashMap<>();
+
+  private volatile boolean running;
+
+  private Thread thread;
+
+  public void addListener(final String channel, final Listener listener) {
+    if (!CHANNEL_PATTERN.matcher(channel).matches()) {
+      throw new IllegalArgumentException("invalid channel: " + channel);
+    }
+    channelToListeners.computeIfAbsent(channel, key -> new CopyOnWriteArrayList<>()).add(listener);
+  }
+
+  void onStart(@Observes final StartupEvent event) {
+    running = true;
+    thread = new Thread(this::run, "jds-notification-listener");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void onStop(@Observes final ShutdownEvent event) {
+    running = false;
+    if (thread != null) {
+      thread.interrupt();
+    }
+  }
+
+  private void notifyMissed() {
+    channelToListeners.values().forEach(listeners -> listeners.forEach(Listener::notificationsMissed));
+  }
+
+  private void dispatch(final PGNotification notification) {
+    final List<Listener> listeners = channelToListeners.get(notification.getName());
+    if (listeners != null) {
+      for (final Listener listener : listeners) {
+        try {
+          listener.notificationReceived(notification.getParameter());
+        }
+        catch (final RuntimeException e) {
+          log.warn("notification listener failed", e);
+        }
+      }
+    }
+  }
+
+  private void listen(final Connection connection, final Set<String> listeningChannels) throws SQLException {
+    for (final String channel : channelToListeners.keySet()) {
+      if (!listeningChannels.contains(channel)) {
+        try (Statement statement = connection.createStatement()) {
+          // the channel is validated in addListener
+          statement.execute("listen " + channel);
+        }
+        listeningChannels.add(channel);
+      }
+    }
+  }
+
+  private void run() {
+    while (running) {
+      try (Connection connection = dataSource.getConnection()) {
+        final PGConnection pgConnection = connection.unwrap(PGConnection.class);
+        final Set<String> listeningChannels = new HashSet<>();
+        listen(connection, listeningChannels);
+        // notifications might have been sent while we were not listening
+        notifyMissed();
+
+        while (running) {
+          // listeners might have been added in the meantime
+          listen(connection, listeningChannels);
+          final PGNotification[] notifications = pgConnection.getNotifications(POLL_TIMEOUT_MILLIS);
+          if (notifications != null) {
+            for (final PGNotification notification : notifications) {
+              dispatch(notification);
+            }
+          }
+        }
+      }
+      catch (final SQLException | RuntimeException e) {
+        if (!running) {
+          break;
+        }
+        log.warn("listening for notifications failed, will retry", e);
+        notifyMissed();
+        try {
+          Thread.sleep(RETRY_DELAY_MILLIS);
+        }
+        catch (final InterruptedException interruptedException) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+  }
+
+}
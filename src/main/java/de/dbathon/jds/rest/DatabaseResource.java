@@ -1,6 +1,5 @@
 package de.dbathon.jds.rest;
 
-import static de.dbathon.jds.util.JsonUtil.readObjectFromJsonBytes;
 import static java.util.Objects.requireNonNull;
 
 import javax.enterprise.context.ApplicationScoped;
@@ -15,7 +14,9 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriInfo;
 
@@ -28,6 +29,8 @@ import org.eclipse.microprofile.openapi.annotations.tags.Tag;
 
 import de.dbathon.jds.service.ApiException;
 import de.dbathon.jds.service.DatabaseService;
+import de.dbathon.jds.service.DatabaseService.WriteConcurrency;
+import de.dbathon.jds.service.IndexService;
 import de.dbathon.jds.util.JsonMap;
 
 @Path("{databaseName}")
@@ -40,11 +43,27 @@ public class DatabaseResource {
   @Inject
   DatabaseService databaseService;
 
+  @Inject
+  IndexService indexService;
+
   @GET
   @Operation(summary = "get information about the database")
   @APIResponse(responseCode = "200", content = @Content(schema = @Schema(ref = "jsonObject")))
-  public JsonMap get(@PathParam("databaseName") final String databaseName) {
-    return databaseService.getDatabase(databaseName);
+  @APIResponse(responseCode = "304")
+  public Response get(@PathParam("databaseName") final String databaseName, @Context final Request request) {
+    final JsonMap database = databaseService.getDatabase(databaseName);
+    final ResponseBuilder response = Response.ok();
+    // with DOCUMENT_LOCK the new version is committed before the statistics of the writer, so the version does not
+    // identify the response
+    if (databaseService.getWriteConcurrency() == WriteConcurrency.DATABASE_LOCK) {
+      final String version = (String) database.get("version");
+      final Response notModifiedResponse = RestUtil.evaluateVersionPreconditions(request, version);
+      if (notModifiedResponse != null) {
+        return notModifiedResponse;
+      }
+      response.tag(RestUtil.versionEntityTag(version));
+    }
+    return RestUtil.buildJsonResponse(response, database);
   }
 
   @PUT
@@ -52,9 +71,8 @@ public class DatabaseResource {
   @APIResponse(responseCode = "200", content = @Content(schema = @Schema(ref = "jsonObject")))
   @APIResponse(responseCode = "201", content = @Content(schema = @Schema(ref = "jsonObject")))
   public Response put(@PathParam("databaseName") final String databaseName,
-      @RequestBody(content = @Content(schema = @Schema(ref = "jsonObject"))) final byte[] jsonBytes,
+      @RequestBody(content = @Content(schema = @Schema(ref = "jsonObject"))) final JsonMap json,
       @Context final UriInfo uriInfo) {
-    final JsonMap json = readObjectFromJsonBytes(jsonBytes);
     final String name, version;
     try {
       name = requireNonNull((String) json.get("name"));
@@ -86,6 +104,8 @@ public class DatabaseResource {
       throw new ApiException("version parameter is missing");
     }
     databaseService.deleteDatabase(databaseName, version);
+    // the indexes are not needed anymore, unless other databases use them
+    indexService.dropUnreferencedIndexes();
     return new JsonMap();
   }
 
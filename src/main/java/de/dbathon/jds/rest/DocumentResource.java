@@ -1,18 +1,18 @@
 package de.dbathon.jds.rest;
 
 import static de.dbathon.jds.util.JsonUtil.readJsonString;
-import static de.dbathon.jds.util.JsonUtil.readObjectFromJsonBytes;
-import static de.dbathon.jds.util.JsonUtil.toJsonString;
 
+import java.io.InputStream;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.stream.Stream;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
+import javax.json.stream.JsonParser;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
@@ -23,12 +23,15 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriInfo;
 
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.openapi.annotations.Operation;
 import org.eclipse.microprofile.openapi.annotations.enums.SchemaType;
 import org.eclipse.microprofile.openapi.annotations.media.Content;
@@ -40,7 +43,9 @@ import org.eclipse.microprofile.openapi.annotations.tags.Tag;
 
 import de.dbathon.jds.service.ApiException;
 import de.dbathon.jds.service.DocumentService;
-import de.dbathon.jds.service.DocumentService.OperationType;
+import de.dbathon.jds.service.DocumentService.ChangesQuery;
+import de.dbathon.jds.service.DocumentService.DocumentQuery;
+import de.dbathon.jds.service.RawDocument;
 import de.dbathon.jds.util.JsonMap;
 
 @Path("{databaseName}")
@@ -50,16 +55,47 @@ import de.dbathon.jds.util.JsonMap;
 @Tag(name = "document")
 public class DocumentResource {
 
+  private static final int MAX_CHANGES_TIMEOUT_MILLIS = 60000;
+
+  /**
+   * See {@link RestUtil#buildStreamingDocumentsResponse}.
+   */
+  private static final String STREAMING_RESPONSE_DESCRIPTION = "the documents are streamed after the status is sent, "
+      + "if an error occurs while reading them, then the response is aborted (incomplete json)";
+
   @Inject
   DocumentService documentService;
 
+  @Inject
+  JsonRequestLimits jsonRequestLimits;
+
+  @Inject
+  TransactionManager transactionManager;
+
+  @ConfigProperty(name = "jds.multi.transaction-timeout", defaultValue = "PT10M")
+  Duration multiTransactionTimeout;
+
   @GET
   @Path("{documentId}")
   @Operation(summary = "get a document")
   @APIResponse(responseCode = "200", content = @Content(schema = @Schema(ref = "jsonObject")))
-  public JsonMap get(@PathParam("databaseName") final String databaseName,
-      @PathParam("documentId") final String documentId) {
-    return documentService.getDocument(databaseName, documentId);
+  @APIResponse(responseCode = "304")
+  public Response get(@PathParam("databaseName") final String databaseName,
+      @PathParam("documentId") final String documentId,
+      @QueryParam("fields") @Parameter(name = "fields", required = false,
+          description = "comma separated keys, only these are returned (in addition to id and version)")
+      final String fields,
+      @Context final HttpHeaders headers, @Context final Request request) {
+    if (headers.getHeaderString(HttpHeaders.IF_NONE_MATCH) != null) {
+      // check just the version first, then the data does not need to be loaded if it was not modified
+      final Response notModifiedResponse =
+          RestUtil.evaluateVersionPreconditions(request, documentService.getDocumentVersion(databaseName, documentId));
+      if (notModifiedResponse != null) {
+        return notModifiedResponse;
+      }
+    }
+    final RawDocument document = documentService.getDocument(databaseName, documentId, parseKeys(fields));
+    return Response.ok(document).tag(RestUtil.versionEntityTag(document.version)).build();
   }
 
   @PUT
@@ -69,9 +105,8 @@ public class DocumentResource {
   @APIResponse(responseCode = "201", content = @Content(schema = @Schema(ref = "jsonObject")))
   public Response put(@PathParam("databaseName") final String databaseName,
       @PathParam("documentId") final String documentId,
-      @RequestBody(content = @Content(schema = @Schema(ref = "jsonObject"))) final byte[] jsonBytes,
+      @RequestBody(content = @Content(schema = @Schema(ref = "jsonObject"))) final JsonMap json,
       @Context final UriInfo uriInfo) {
-    final JsonMap json = readObjectFromJsonBytes(jsonBytes);
     final String newVersion;
     final ResponseBuilder response;
     if (!json.containsKey(DocumentService.VERSION_PROPERTY)) {
@@ -100,83 +135,45 @@ public class DocumentResource {
 
   // TODO PATCH
 
-  private static class IdAndVersionAndDocument {
-    final String id;
-    final String version;
-    final JsonMap document;
-
-    public IdAndVersionAndDocument(final String id, final String version, final JsonMap document) {
-      this.id = id;
-      this.version = version;
-      this.document = document;
-    }
-  }
-
-  private Stream<IdAndVersionAndDocument> getListElements(final JsonMap json, final String property) {
-    final Object value = json.get(property);
-    if (value == null) {
-      return Stream.empty();
-    }
-    if (!(value instanceof List<?>)) {
-      throw new ApiException(property + " is not an array");
-    }
-    return ((List<?>) value).stream().map(element -> {
-      if (!(element instanceof JsonMap)) {
-        throw new ApiException("all elements of " + property + " need to be objects");
-      }
-      final JsonMap document = (JsonMap) element;
-
-      final Object id = document.get(DocumentService.ID_PROPERTY);
-      if (!(id instanceof String)) {
-        throw new ApiException("invalid " + DocumentService.ID_PROPERTY + ": " + toJsonString(id));
-      }
-
-      final Object version = document.get(DocumentService.VERSION_PROPERTY);
-      if (!(version == null || version instanceof String)) {
-        throw new ApiException("invalid " + DocumentService.VERSION_PROPERTY + ": " + toJsonString(version));
-      }
-
-      return new IdAndVersionAndDocument((String) id, (String) version, document);
-    });
-  }
-
   @POST
   @Path("_multi")
   @Operation(summary = "create, update or delete multiple documents in one request")
   @APIResponse(responseCode = "200", content = @Content(schema = @Schema(ref = "jsonObject")))
   public JsonMap multi(@PathParam("databaseName") final String databaseName,
-      @RequestBody(content = @Content(schema = @Schema(ref = "jsonObject"))) final byte[] jsonBytes) {
-    final JsonMap json = readObjectFromJsonBytes(jsonBytes);
-
-    final List<DocumentService.Operation> operations = new ArrayList<>();
-    // allow each id only once (there is no reason to allow multiple operations for one document)
-    final Set<String> seenIds = new HashSet<>();
-    getListElements(json, "put").forEach(entry -> {
-      if (!seenIds.add(entry.id)) {
-        throw new ApiException("only one change per document allowed");
-      }
-
-      operations.add(new DocumentService.Operation(entry.version == null ? OperationType.CREATE : OperationType.UPDATE,
-          entry.id, entry.document, null));
-    });
-
-    getListElements(json, "delete").forEach(entry -> {
-      if (!seenIds.add(entry.id)) {
-        throw new ApiException("only one operation per document allowed");
-      }
+      @RequestBody(content = @Content(schema = @Schema(ref = "jsonObject"))) final InputStream body,
+      @Context final HttpHeaders httpHeaders) {
+    // the operations are performed while the request is read, the parser is not closed (see JsonRequestLimits)
+    final JsonParser parser =
+        jsonRequestLimits.createParser(body, httpHeaders.getHeaderString(HttpHeaders.CONTENT_LENGTH));
+    final MultiOperationsIterator operations =
+        new MultiOperationsIterator(parser, jsonRequestLimits.getLimits(), jsonRequestLimits.getMaxDocuments());
 
-      operations.add(new DocumentService.Operation(OperationType.DELETE, entry.id, null, entry.version));
-    });
-
-    if (operations.isEmpty()) {
-      throw new ApiException("no put or delete operations specified");
+    // the transaction also includes reading the request, so it gets its own (longer) timeout
+    setTransactionTimeout((int) multiTransactionTimeout.getSeconds());
+    final Map<String, String> newVersions;
+    try {
+      newVersions = documentService.performOperationsInBatches(databaseName, operations);
+    }
+    finally {
+      // back to the default
+      setTransactionTimeout(0);
     }
-
-    final Map<String, String> newVersions = documentService.performOperations(databaseName, operations);
 
     return new JsonMap().add("newDocumentVersions", newVersions);
   }
 
+  /**
+   * Sets the timeout for the transactions that are started by the current thread.
+   */
+  private void setTransactionTimeout(final int seconds) {
+    try {
+      transactionManager.setTransactionTimeout(seconds);
+    }
+    catch (final SystemException e) {
+      throw new RuntimeException("setting the transaction timeout failed", e);
+    }
+  }
+
   private Integer tryParseInteger(final String string, final String name) {
     if (string == null || string.isEmpty()) {
       return null;
@@ -189,21 +186,142 @@ public class DocumentResource {
     }
   }
 
+  /**
+   * Parses comma separated keys.
+   */
+  private List<String> parseKeys(final String keys) {
+    if (keys == null) {
+      return null;
+    }
+    final List<String> result = new ArrayList<>();
+    for (final String key : keys.split(",")) {
+      if (!key.trim().isEmpty()) {
+        result.add(key.trim());
+      }
+    }
+    return result;
+  }
+
   @GET
   @Path("_query")
   @Operation(summary = "query documents")
-  @APIResponse(responseCode = "200", content = @Content(schema = @Schema(ref = "jsonObject")))
+  @APIResponse(responseCode = "200", description = STREAMING_RESPONSE_DESCRIPTION,
+      content = @Content(schema = @Schema(ref = "jsonObject")))
+  @APIResponse(responseCode = "304")
   public Response query(
       @PathParam("databaseName") @Parameter(name = "databaseName", required = true) final String databaseName,
       @QueryParam("filters") @Parameter(name = "filters", required = false) final String filters,
       @QueryParam("limit") @Parameter(name = "limit", required = false,
           schema = @Schema(type = SchemaType.NUMBER)) final String limit,
       @QueryParam("offset") @Parameter(name = "offset", schema = @Schema(type = SchemaType.NUMBER),
-          required = false) final String offset) {
-    final List<JsonMap> documents =
-        documentService.queryDocuments(databaseName, filters != null ? readJsonString(filters) : null,
-            tryParseInteger(limit, "limit"), tryParseInteger(offset, "offset"));
-    return RestUtil.buildResultResponse(Status.OK, documents);
+          required = false) final String offset,
+      @QueryParam("next") @Parameter(name = "next", required = false,
+          description = "the continuation token returned as \"next\" with the previous page") final String next,
+      @QueryParam("fields") @Parameter(name = "fields", required = false,
+          description = "comma separated keys, only these are returned (in addition to id and version)")
+      final String fields,
+      @QueryParam("order") @Parameter(name = "order", required = false,
+          description = "json array of {key, type (string or number), direction (asc or desc)}, only documents "
+              + "with values of the given types are returned") final String order,
+      @Context final UriInfo uriInfo, @Context final Request request) {
+    // build (and validate) the query first, the documents are then streamed while the response is written
+    final DocumentQuery query =
+        documentService.buildDocumentQuery(databaseName, filters != null ? readJsonString(filters) : null,
+            tryParseInteger(limit, "limit"), tryParseInteger(offset, "offset"), next, parseKeys(fields),
+            order != null ? readJsonString(order) : null);
+    final ResponseBuilder response = Response.ok();
+    if (query.getDatabaseVersion() != null) {
+      // the result can only change if the database version changes
+      final Response notModifiedResponse = RestUtil.evaluateVersionPreconditions(request, query.getDatabaseVersion());
+      if (notModifiedResponse != null) {
+        return notModifiedResponse;
+      }
+      response.tag(RestUtil.versionEntityTag(query.getDatabaseVersion()));
+    }
+    return RestUtil.buildStreamingDocumentsResponse(response, RestUtil.isPrettyRequested(uriInfo),
+        documentConsumer -> {
+          final String nextToken = documentService.queryDocuments(query, documentConsumer);
+          return nextToken != null ? new JsonMap().add("next", nextToken) : null;
+        });
+  }
+
+  @GET
+  @Path("_explain")
+  @Operation(summary = "explain the query plan of a query (with the same parameters as _query)")
+  @APIResponse(responseCode = "200", content = @Content(schema = @Schema(ref = "jsonObject")))
+  public JsonMap explain(
+      @PathParam("databaseName") @Parameter(name = "databaseName", required = true) final String databaseName,
+      @QueryParam("filters") @Parameter(name = "filters", required = false) final String filters,
+      @QueryParam("limit") @Parameter(name = "limit", required = false,
+          schema = @Schema(type = SchemaType.NUMBER)) final String limit,
+      @QueryParam("offset") @Parameter(name = "offset", schema = @Schema(type = SchemaType.NUMBER),
+          required = false) final String offset,
+      @QueryParam("next") @Parameter(name = "next", required = false) final String next,
+      @QueryParam("fields") @Parameter(name = "fields", required = false) final String fields,
+      @QueryParam("order") @Parameter(name = "order", required = false) final String order,
+      @QueryParam("analyze") @Parameter(name = "analyze", required = false,
+          description = "whether the query is actually executed (explain analyze), defaults to true",
+          schema = @Schema(type = SchemaType.BOOLEAN)) final String analyze) {
+    final DocumentQuery query =
+        documentService.buildDocumentQuery(databaseName, filters != null ? readJsonString(filters) : null,
+            tryParseInteger(limit, "limit"), tryParseInteger(offset, "offset"), next, parseKeys(fields),
+            order != null ? readJsonString(order) : null);
+    return documentService.explainDocumentQuery(query, analyze == null || Boolean.parseBoolean(analyze));
+  }
+
+  @GET
+  @Path("_changes")
+  @Operation(summary = "get the documents changed since a version, ordered by version")
+  @APIResponse(responseCode = "200", description = STREAMING_RESPONSE_DESCRIPTION,
+      content = @Content(schema = @Schema(ref = "jsonObject")))
+  @APIResponse(responseCode = "410", description = "the changes since the given position are not complete anymore")
+  @APIResponse(responseCode = "501", description = "not available with write concurrency DOCUMENT_LOCK")
+  public Response changes(
+      @PathParam("databaseName") @Parameter(name = "databaseName", required = true) final String databaseName,
+      @QueryParam("since") @Parameter(name = "since", required = false) final String since,
+      @QueryParam("limit") @Parameter(name = "limit", required = false,
+          schema = @Schema(type = SchemaType.NUMBER)) final String limit,
+      @QueryParam("next") @Parameter(name = "next", required = false,
+          description = "the continuation token returned as \"next\" with the previous result") final String next,
+      @QueryParam("timeout") @Parameter(name = "timeout", required = false,
+          description = "wait at most this many milliseconds for changes if there are none (long polling)",
+          schema = @Schema(type = SchemaType.NUMBER)) final String timeout,
+      @Context final UriInfo uriInfo) {
+    final Integer timeoutMillis = tryParseInteger(timeout, "timeout");
+    if (timeoutMillis != null && (timeoutMillis < 0 || timeoutMillis > MAX_CHANGES_TIMEOUT_MILLIS)) {
+      throw new ApiException("invalid timeout");
+    }
+    final ChangesQuery query =
+        documentService.buildChangesQuery(databaseName, since, tryParseInteger(limit, "limit"), next);
+    if (timeoutMillis != null && timeoutMillis > 0) {
+      documentService.awaitChanges(query, timeoutMillis);
+    }
+    return RestUtil.buildStreamingDocumentsResponse(Response.ok(), RestUtil.isPrettyRequested(uriInfo),
+        documentConsumer -> documentService.queryChanges(query, documentConsumer));
+  }
+
+  @GET
+  @Path("_aggregate")
+  @Operation(summary = "aggregate documents (optionally grouped)")
+  @APIResponse(responseCode = "200", content = @Content(schema = @Schema(ref = "jsonObject")))
+  public Response aggregate(
+      @PathParam("databaseName") @Parameter(name = "databaseName", required = true) final String databaseName,
+      @QueryParam("filters") @Parameter(name = "filters", required = false) final String filters,
+      @QueryParam("groupBy") @Parameter(name = "groupBy", required = false,
+          description = "comma separated keys") final String groupBy,
+      @QueryParam("aggregates") @Parameter(name = "aggregates", required = true,
+          description = "json object of named aggregates, e.g. {\"total\": {\"sum\": \"amount\"}}, "
+              + "the functions are count, sum, min, max and avg") final String aggregates,
+      @QueryParam("limit") @Parameter(name = "limit", required = false,
+          description = "the maximum number of groups",
+          schema = @Schema(type = SchemaType.NUMBER)) final String limit) {
+    if (aggregates == null) {
+      throw new ApiException("aggregates parameter is missing");
+    }
+    final List<JsonMap> result = documentService.aggregateDocuments(databaseName,
+        filters != null ? readJsonString(filters) : null, parseKeys(groupBy), readJsonString(aggregates),
+        tryParseInteger(limit, "limit"));
+    return RestUtil.buildResultResponse(Status.OK, result);
   }
 
   @GET
@@ -212,8 +330,15 @@ public class DocumentResource {
   @APIResponse(responseCode = "200", content = @Content(schema = @Schema(ref = "jsonObject")))
   public Response count(
       @PathParam("databaseName") @Parameter(name = "databaseName", required = true) final String databaseName,
-      @QueryParam("filters") @Parameter(name = "filters", required = false) final String filters) {
-    final Long count = documentService.countDocuments(databaseName, filters != null ? readJsonString(filters) : null);
+      @QueryParam("filters") @Parameter(name = "filters", required = false) final String filters,
+      @QueryParam("estimate") @Parameter(name = "estimate", required = false,
+          description = "return the estimate of the query planner instead of counting",
+          schema = @Schema(type = SchemaType.BOOLEAN)) final String estimate,
+      @QueryParam("countUpTo") @Parameter(name = "countUpTo", required = false,
+          description = "stop counting at this number", schema = @Schema(type = SchemaType.NUMBER))
+      final String countUpTo) {
+    final Long count = documentService.countDocuments(databaseName, filters != null ? readJsonString(filters) : null,
+        Boolean.parseBoolean(estimate), tryParseInteger(countUpTo, "countUpTo"));
     return RestUtil.buildResultResponse(Status.OK, count);
   }
 
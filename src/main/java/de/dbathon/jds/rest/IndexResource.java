@@ -0,0 +1,81 @@
+package de.dbathon.jds.rest;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.eclipse.microprofile.openapi.annotations.Operation;
+import org.eclipse.microprofile.openapi.annotations.media.Content;
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+import org.eclipse.microprofile.openapi.annotations.parameters.RequestBody;
+import org.eclipse.microprofile.openapi.annotations.responses.APIResponse;
+import org.eclipse.microprofile.openapi.annotations.tags.Tag;
+
+import de.dbathon.jds.service.ApiException;
+import de.dbathon.jds.service.IndexService;
+import de.dbathon.jds.service.IndexService.IndexType;
+import de.dbathon.jds.util.JsonMap;
+
+/**
+ * Manages the indexes for range filters of a database, see {@link IndexService}.
+ */
+@Path("{databaseName}/_indexes")
+@ApplicationScoped
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+@Tag(name = "index")
+public class IndexResource {
+
+  @Inject
+  IndexService indexService;
+
+  @GET
+  @Operation(summary = "get the declared indexes of the database")
+  @APIResponse(responseCode = "200", content = @Content(schema = @Schema(ref = "jsonObject")))
+  public Response get(@PathParam("databaseName") final String databaseName) {
+    return RestUtil.buildResultResponse(Status.OK, indexService.getIndexes(databaseName));
+  }
+
+  @POST
+  @Operation(summary = "declare an index (with path and type) and wait until it is built")
+  @APIResponse(responseCode = "200", content = @Content(schema = @Schema(ref = "jsonObject")))
+  @APIResponse(responseCode = "201", content = @Content(schema = @Schema(ref = "jsonObject")))
+  public Response post(@PathParam("databaseName") final String databaseName,
+      @RequestBody(content = @Content(schema = @Schema(ref = "jsonObject"))) final JsonMap json) {
+    final Object path = json.get("path");
+    final Object type = json.get("type");
+    if (!(path instanceof String) || !(type instanceof String)) {
+      throw new ApiException("invalid path or type");
+    }
+    final IndexType indexType = IndexType.fromTypeName((String) type);
+    final boolean created = indexService.declareIndex(databaseName, (String) path, indexType);
+    // also for existing declarations, a previous build might have failed
+    indexService.buildIndex((String) path, indexType);
+    return RestUtil.buildJsonResponse(created ? Status.CREATED : Status.OK,
+        indexService.getIndex(databaseName, (String) path, indexType));
+  }
+
+  @DELETE
+  @Operation(summary = "remove an index")
+  @APIResponse(responseCode = "200", content = @Content(schema = @Schema(ref = "jsonObject")))
+  public JsonMap delete(@PathParam("databaseName") final String databaseName, @QueryParam("path") final String path,
+      @QueryParam("type") final String type) {
+    if (path == null || type == null) {
+      throw new ApiException("path or type parameter is missing");
+    }
+    indexService.removeIndex(databaseName, path, IndexType.fromTypeName(type));
+    indexService.dropUnreferencedIndexes();
+    return new JsonMap();
+  }
+
+}
@@ -0,0 +1,56 @@
+package de.dbathon.jds.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParsingException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.Provider;
+
+import de.dbathon.jds.util.JsonMap;
+import de.dbathon.jds.util.JsonUtil;
+
+/**
+ * Reads {@link JsonMap} request bodies directly from the entity stream (instead of buffering the
+ * whole body first), with the {@link JsonRequestLimits}.
+ */
+@Provider
+@ApplicationScoped
+public class JsonMapBodyReader implements MessageBodyReader<JsonMap> {
+
+  @Inject
+  JsonRequestLimits jsonRequestLimits;
+
+  @Override
+  public boolean isReadable(final Class<?> type, final Type genericType, final Annotation[] annotations,
+      final MediaType mediaType) {
+    return type == JsonMap.class;
+  }
+
+  @Override
+  public JsonMap readFrom(final Class<JsonMap> type, final Type genericType, final Annotation[] annotations,
+      final MediaType mediaType, final MultivaluedMap<String, String> httpHeaders, final InputStream entityStream)
+      throws IOException, WebApplicationException {
+    // the parser is not closed, because that would also close the entityStream
+    final JsonParser parser =
+        jsonRequestLimits.createParser(entityStream, httpHeaders.getFirst(HttpHeaders.CONTENT_LENGTH));
+    final Object result = JsonUtil.readFromParser(parser, jsonRequestLimits.getLimits());
+    if (!(result instanceof JsonMap)) {
+      throw new JsonParsingException("not an object", parser.getLocation());
+    }
+    if (parser.hasNext()) {
+      throw new JsonParsingException("unexpected extra input", parser.getLocation());
+    }
+    return (JsonMap) result;
+  }
+
+}
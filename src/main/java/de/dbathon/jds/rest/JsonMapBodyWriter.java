@@ -7,8 +7,10 @@ import java.lang.reflect.Type;
 
 import javax.json.stream.JsonGenerator;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.ext.MessageBodyWriter;
 import javax.ws.rs.ext.Provider;
 
@@ -18,6 +20,9 @@ import de.dbathon.jds.util.JsonUtil;
 @Provider
 public class JsonMapBodyWriter implements MessageBodyWriter<JsonMap> {
 
+  @Context
+  UriInfo uriInfo;
+
   @Override
   public boolean isWriteable(final Class<?> type, final Type genericType, final Annotation[] annotations,
       final MediaType mediaType) {
@@ -28,7 +33,8 @@ public class JsonMapBodyWriter implements MessageBodyWriter<JsonMap> {
   public void writeTo(final JsonMap json, final Class<?> type, final Type genericType, final Annotation[] annotations,
       final MediaType mediaType, final MultivaluedMap<String, Object> httpHeaders, final OutputStream entityStream)
       throws IOException, WebApplicationException {
-    final JsonGenerator generator = JsonUtil.PRETTY_GENERATOR_FACTORY.createGenerator(entityStream);
+    final JsonGenerator generator = (RestUtil.isPrettyRequested(uriInfo) ? JsonUtil.PRETTY_GENERATOR_FACTORY
+        : JsonUtil.GENERATOR_FACTORY).createGenerator(entityStream);
     JsonUtil.writeToGenerator(json, generator);
     generator.flush();
     // do not close the generator, because that would also close the entityStream
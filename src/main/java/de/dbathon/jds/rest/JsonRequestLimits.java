@@ -0,0 +1,124 @@
+package de.dbathon.jds.rest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.json.stream.JsonParser;
+import javax.ws.rs.core.Response.Status;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import de.dbathon.jds.service.ApiException;
+import de.dbathon.jds.util.JsonUtil;
+import io.quarkus.runtime.configuration.MemorySize;
+
+/**
+ * The limits for json request bodies, that are parsed directly from the entity stream: the body
+ * size (<code>jds.request.max-body-size</code>), the nesting depth
+ * (<code>jds.request.max-depth</code>) and the number of documents in the lists of
+ * <code>_multi</code> requests (<code>jds.request.max-documents</code>).
+ */
+@ApplicationScoped
+public class JsonRequestLimits {
+
+  @ConfigProperty(name = "jds.request.max-body-size", defaultValue = "10M")
+  MemorySize maxBodySize;
+
+  @ConfigProperty(name = "jds.request.max-depth", defaultValue = "100")
+  int maxDepth;
+
+  @ConfigProperty(name = "jds.request.max-documents", defaultValue = "10000")
+  int maxDocuments;
+
+  /**
+   * Fails as soon as more than the allowed number of bytes are read.
+   */
+  static class LimitedInputStream extends FilterInputStream {
+    private final long maxBytes;
+    private long remaining;
+
+    LimitedInputStream(final InputStream in, final long maxBytes) {
+      super(in);
+      this.maxBytes = maxBytes;
+      this.remaining = maxBytes;
+    }
+
+    private int count(final int read) {
+      if (read > 0) {
+        remaining -= read;
+        if (remaining < 0) {
+          throw tooLargeException(maxBytes);
+        }
+      }
+      return read;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int result = super.read();
+      count(result >= 0 ? 1 : -1);
+      return result;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      return count(super.read(b, off, len));
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+      final long skipped = super.skip(n);
+      count((int) Math.min(skipped, Integer.MAX_VALUE));
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  private static ApiException tooLargeException(final long maxBytes) {
+    return new ApiException("request body is larger than " + maxBytes + " bytes", Status.REQUEST_ENTITY_TOO_LARGE);
+  }
+
+  /**
+   * The limits for parsing, the number of documents is limited separately, see
+   * {@link #getMaxDocuments()}.
+   */
+  public JsonUtil.Limits getLimits() {
+    return new JsonUtil.Limits(maxDepth) {
+      @Override
+      public RuntimeException createMaxDepthExceededException(final JsonParser parser) {
+        return new ApiException("request body is nested deeper than " + maxDepth + " levels",
+            Status.REQUEST_ENTITY_TOO_LARGE);
+      }
+    };
+  }
+
+  /**
+   * @return the maximum number of documents in each of the lists of a <code>_multi</code> request
+   */
+  public int getMaxDocuments() {
+    return maxDocuments;
+  }
+
+  /**
+   * Creates a {@link JsonParser} for the given entity stream that fails if more than the maximum
+   * body size is read. The parser should not be closed, because that would also close the entity
+   * stream.
+   *
+   * @param contentLength
+   *          the value of the Content-Length header (may be <code>null</code>), to fail early
+   */
+  public JsonParser createParser(final InputStream entityStream, final String contentLength) {
+    final long maxBytes = maxBodySize.asLongValue();
+    if (contentLength != null && contentLength.matches("[0-9]{1,18}") && Long.parseLong(contentLength) > maxBytes) {
+      throw tooLargeException(maxBytes);
+    }
+    return JsonUtil.PROVIDER.createParser(new LimitedInputStream(entityStream, maxBytes));
+  }
+
+}
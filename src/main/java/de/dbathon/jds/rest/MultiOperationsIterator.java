@@ -0,0 +1,169 @@
+package de.dbathon.jds.rest;
+
+import static de.dbathon.jds.util.JsonUtil.toJsonString;
+import static java.util.Objects.requireNonNull;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+import javax.json.stream.JsonParsingException;
+import javax.ws.rs.core.Response.Status;
+
+import de.dbathon.jds.service.ApiException;
+import de.dbathon.jds.service.DocumentService;
+import de.dbathon.jds.service.DocumentService.Operation;
+import de.dbathon.jds.service.DocumentService.OperationType;
+import de.dbathon.jds.util.JsonMap;
+import de.dbathon.jds.util.JsonUtil;
+
+/**
+ * Reads the operations of a <code>_multi</code> request (<code>{"put": [...], "delete":
+ * [...]}</code>) directly from the {@link JsonParser}, one document at a time, so that they can be
+ * performed while the rest of the request is still being read. Other properties of the request
+ * object are ignored.
+ * <p>
+ * Each id is only allowed once in the whole request, so the ids (but not the documents) are kept.
+ */
+class MultiOperationsIterator implements Iterator<Operation> {
+
+  private final JsonParser parser;
+  private final JsonUtil.Limits limits;
+  private final int maxDocuments;
+
+  private final Set<String> seenIds = new HashSet<>();
+  private boolean started = false;
+  private boolean finished = false;
+  /**
+   * "put" or "delete" while the elements of that list are read, otherwise <code>null</code>.
+   */
+  private String currentList = null;
+  private int currentListLength = 0;
+  private Operation next = null;
+
+  /**
+   * @param maxDocuments
+   *          the maximum number of documents in each of the lists
+   */
+  MultiOperationsIterator(final JsonParser parser, final JsonUtil.Limits limits, final int maxDocuments) {
+    this.parser = requireNonNull(parser);
+    this.limits = requireNonNull(limits);
+    this.maxDocuments = maxDocuments;
+  }
+
+  private Event nextEvent() {
+    if (!parser.hasNext()) {
+      throw new JsonParsingException("unexpected end of input", parser.getLocation());
+    }
+    return parser.next();
+  }
+
+  private Operation toOperation(final String property, final Object element) {
+    if (!(element instanceof JsonMap)) {
+      throw new ApiException("all elements of " + property + " need to be objects");
+    }
+    final JsonMap document = (JsonMap) element;
+
+    final Object id = document.get(DocumentService.ID_PROPERTY);
+    if (!(id instanceof String)) {
+      throw new ApiException("invalid " + DocumentService.ID_PROPERTY + ": " + toJsonString(id));
+    }
+
+    final Object version = document.get(DocumentService.VERSION_PROPERTY);
+    if (!(version == null || version instanceof String)) {
+      throw new ApiException("invalid " + DocumentService.VERSION_PROPERTY + ": " + toJsonString(version));
+    }
+
+    // allow each id only once (there is no reason to allow multiple operations for one document)
+    if (!seenIds.add((String) id)) {
+      throw new ApiException("only one operation per document allowed").withDocumentId((String) id);
+    }
+
+    if ("put".equals(property)) {
+      return new Operation(version == null ? OperationType.CREATE : OperationType.UPDATE, (String) id, document,
+          null);
+    }
+    else {
+      return new Operation(OperationType.DELETE, (String) id, null, (String) version);
+    }
+  }
+
+  /**
+   * @return the next operation or <code>null</code> if the end of the request is reached
+   */
+  private Operation readNext() {
+    if (!started) {
+      started = true;
+      if (nextEvent() != Event.START_OBJECT) {
+        throw new JsonParsingException("not an object", parser.getLocation());
+      }
+    }
+    while (true) {
+      if (currentList != null) {
+        final Event event = nextEvent();
+        if (event == Event.END_ARRAY) {
+          currentList = null;
+          continue;
+        }
+        if (++currentListLength > maxDocuments) {
+          throw new ApiException("request contains more than " + maxDocuments + " documents in " + currentList,
+              Status.REQUEST_ENTITY_TOO_LARGE);
+        }
+        // the elements are in an array in the root object
+        return toOperation(currentList, JsonUtil.readFromParser(parser, event, limits, 2));
+      }
+
+      final Event event = nextEvent();
+      if (event == Event.END_OBJECT) {
+        if (parser.hasNext()) {
+          throw new JsonParsingException("unexpected extra input", parser.getLocation());
+        }
+        if (seenIds.isEmpty()) {
+          throw new ApiException("no put or delete operations specified");
+        }
+        return null;
+      }
+      if (event != Event.KEY_NAME) {
+        throw new JsonParsingException("unexpected event, expected KEY_NAME: " + event, parser.getLocation());
+      }
+      final String property = parser.getString();
+      final Event valueEvent = nextEvent();
+      if ("put".equals(property) || "delete".equals(property)) {
+        if (valueEvent == Event.START_ARRAY) {
+          currentList = property;
+          currentListLength = 0;
+        }
+        else if (valueEvent != Event.VALUE_NULL) {
+          throw new ApiException(property + " is not an array");
+        }
+      }
+      else {
+        // just skip other properties
+        JsonUtil.readFromParser(parser, valueEvent, limits, 1);
+      }
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (next == null && !finished) {
+      next = readNext();
+      finished = next == null;
+    }
+    return next != null;
+  }
+
+  @Override
+  public Operation next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    final Operation result = next;
+    next = null;
+    return result;
+  }
+
+}
@@ -0,0 +1,50 @@
+package de.dbathon.jds.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import javax.json.stream.JsonGenerator;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import de.dbathon.jds.service.RawDocument;
+import de.dbathon.jds.util.JsonUtil;
+
+/**
+ * Writes a {@link RawDocument} without parsing its data, unless pretty printing is requested.
+ */
+@Provider
+public class RawDocumentBodyWriter implements MessageBodyWriter<RawDocument> {
+
+  @Context
+  UriInfo uriInfo;
+
+  @Override
+  public boolean isWriteable(final Class<?> type, final Type genericType, final Annotation[] annotations,
+      final MediaType mediaType) {
+    return RawDocument.class.isAssignableFrom(type);
+  }
+
+  @Override
+  public void writeTo(final RawDocument document, final Class<?> type, final Type genericType,
+      final Annotation[] annotations, final MediaType mediaType, final MultivaluedMap<String, Object> httpHeaders,
+      final OutputStream entityStream) throws IOException, WebApplicationException {
+    if (RestUtil.isPrettyRequested(uriInfo)) {
+      final JsonGenerator generator = JsonUtil.PRETTY_GENERATOR_FACTORY.createGenerator(entityStream);
+      JsonUtil.writeToGenerator(document.toJsonMap(), generator);
+      generator.flush();
+      // do not close the generator, because that would also close the entityStream
+    }
+    else {
+      document.writeTo(entityStream);
+    }
+  }
+
+}
@@ -1,19 +1,36 @@
 package de.dbathon.jds.rest;
 
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
+import javax.json.stream.JsonGenerator;
+
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.StatusType;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
 
 import de.dbathon.jds.service.ApiException;
+import de.dbathon.jds.service.RawDocument;
 import de.dbathon.jds.util.JsonMap;
+import de.dbathon.jds.util.JsonUtil;
 
 public class RestUtil {
 
+  public static final String PRETTY_PARAMETER = "pretty";
+
   public static Response buildJsonResponse(final ResponseBuilder builder, final JsonMap json) {
     builder.entity(json);
     builder.header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON);
@@ -28,6 +45,107 @@ public class RestUtil {
     return buildJsonResponse(status, new JsonMap().add("result", json));
   }
 
+  /**
+   * Pretty printing of the json responses is opt-in via the <code>pretty</code> query parameter.
+   */
+  public static boolean isPrettyRequested(final UriInfo uriInfo) {
+    final String pretty = uriInfo.getQueryParameters().getFirst(PRETTY_PARAMETER);
+    // also allow just "?pretty"
+    return pretty != null && (pretty.isEmpty() || Boolean.parseBoolean(pretty));
+  }
+
+  private static void writeDocument(final RawDocument document, final boolean first, final Writer writer) {
+    try {
+      if (!first) {
+        writer.write(",");
+      }
+      document.writeTo(writer);
+    }
+    catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Like {@link #buildResultResponse(StatusType, Object)} with an array of documents as result (but
+   * with a {@link ResponseBuilder} instead of just the status), but the documents are only produced
+   * (by the given <code>documentsProducer</code>) while the response is written, so they are never
+   * all in memory at the same time.
+   * <p>
+   * The <code>documentsProducer</code> can return additional properties (or <code>null</code>),
+   * they are written after the result (e.g. a continuation token).
+   * <p>
+   * If <code>pretty</code> is false, then the documents are written using
+   * {@link RawDocument#writeTo(Writer)} (without parsing them).
+   * <p>
+   * The status and the headers are sent before the <code>documentsProducer</code> runs, so errors
+   * while producing the documents cannot be turned into an error response anymore, the response is
+   * just aborted (with incomplete json). So the request needs to be validated (as far as possible)
+   * before calling this method and the endpoints using this need to document that behaviour.
+   */
+  public static Response buildStreamingDocumentsResponse(final ResponseBuilder builder, final boolean pretty,
+      final Function<Consumer<RawDocument>, JsonMap> documentsProducer) {
+    final StreamingOutput output = outputStream -> {
+      if (pretty) {
+        final JsonGenerator generator = JsonUtil.PRETTY_GENERATOR_FACTORY.createGenerator(outputStream);
+        generator.writeStartObject();
+        generator.writeStartArray("result");
+        final JsonMap extraProperties =
+            documentsProducer.apply(document -> JsonUtil.writeToGenerator(document.toJsonMap(), generator));
+        generator.writeEnd();
+        if (extraProperties != null) {
+          extraProperties.forEach((key, value) -> JsonUtil.writeToGenerator(value, key, generator));
+        }
+        generator.writeEnd();
+        generator.flush();
+        // do not close the generator, because that would also close the outputStream
+      }
+      else {
+        final Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+        writer.write("{\"result\":[");
+        final boolean[] first = { true };
+        final JsonMap extraProperties = documentsProducer.apply(document -> {
+          writeDocument(document, first[0], writer);
+          first[0] = false;
+        });
+        writer.write("]");
+        if (extraProperties != null) {
+          for (final Map.Entry<String, Object> entry : extraProperties.entrySet()) {
+            writer.write(",");
+            JsonUtil.writeJsonString(writer, entry.getKey());
+            writer.write(":");
+            writer.write(JsonUtil.toJsonString(entry.getValue()));
+          }
+        }
+        writer.write("}");
+        writer.flush();
+      }
+    };
+    builder.entity(output);
+    builder.header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON);
+    return builder.build();
+  }
+
+  /**
+   * Versions (of documents and databases) are used as entity tags.
+   */
+  public static EntityTag versionEntityTag(final String version) {
+    return new EntityTag(version);
+  }
+
+  /**
+   * Evaluates the preconditions of the request (e.g. <code>If-None-Match</code>) for the given
+   * version.
+   *
+   * @return the response (e.g. <code>304 Not Modified</code>) or <code>null</code> if the request
+   *         should be processed normally
+   */
+  public static Response evaluateVersionPreconditions(final Request request, final String version) {
+    final EntityTag entityTag = versionEntityTag(version);
+    final ResponseBuilder builder = request.evaluatePreconditions(entityTag);
+    return builder != null ? builder.tag(entityTag).build() : null;
+  }
+
   private static Response buildErrorResponse(final StatusType status, final String message,
       final Map<String, Object> extraProperties) {
     return buildJsonResponse(status, new JsonMap().add("error", message).addAll(extraProperties));
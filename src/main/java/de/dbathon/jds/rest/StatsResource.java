@@ -0,0 +1,59 @@
+package de.dbathon.jds.rest;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import org.eclipse.microprofile.openapi.annotations.Operation;
+import org.eclipse.microprofile.openapi.annotations.media.Content;
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+import org.eclipse.microprofile.openapi.annotations.responses.APIResponse;
+import org.eclipse.microprofile.openapi.annotations.tags.Tag;
+
+import de.dbathon.jds.service.DatabaseIdCache;
+import de.dbathon.jds.service.DocumentCache;
+import de.dbathon.jds.service.FilterCache;
+import de.dbathon.jds.util.JsonMap;
+
+/**
+ * Statistics about the caches of this node. Database names cannot start with "_", so there is no
+ * conflict with {@link DatabaseResource}.
+ */
+@Path("_stats")
+@ApplicationScoped
+@Produces(MediaType.APPLICATION_JSON)
+@Tag(name = "stats")
+public class StatsResource {
+
+  @Inject
+  DatabaseIdCache databaseIdCache;
+
+  @Inject
+  DocumentCache documentCache;
+
+  @Inject
+  FilterCache filterCache;
+
+  private JsonMap cacheJson(final long hits, final long misses, final int size) {
+    final long total = hits + misses;
+    return new JsonMap().add("hits", hits).add("misses", misses).add("hitRate", total > 0 ? (double) hits / total : 0.0)
+        .add("size", size);
+  }
+
+  @GET
+  @Operation(summary = "get statistics about the caches of this node")
+  @APIResponse(responseCode = "200", content = @Content(schema = @Schema(ref = "jsonObject")))
+  public JsonMap get() {
+    return new JsonMap()
+        .add("databaseIdCache",
+            cacheJson(databaseIdCache.getHits(), databaseIdCache.getMisses(), databaseIdCache.getSize()))
+        .add("documentCache",
+            cacheJson(documentCache.getHits(), documentCache.getMisses(), documentCache.getSize())
+                .add("enabled", documentCache.isEnabled()).add("bytes", documentCache.getTotalBytes()))
+        .add("filterCache", cacheJson(filterCache.getHits(), filterCache.getMisses(), filterCache.getSize()));
+  }
+
+}
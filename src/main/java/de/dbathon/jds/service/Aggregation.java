@@ -0,0 +1,175 @@
+package de.dbathon.jds.service;
+
+import static de.dbathon.jds.util.JsonUtil.toJsonString;
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import de.dbathon.jds.util.JsonMap;
+import de.dbathon.jds.util.JsonStringNumber;
+import de.dbathon.jds.util.JsonUtil;
+
+/**
+ * An aggregation of the documents: optionally grouped by the json values at some keys and with
+ * named aggregates, e.g. <code>{"total": {"sum": "amount"}, "count": {"count": null}}</code>.
+ * <p>
+ * The functions are <code>count</code> (of all documents if the key is <code>null</code>, otherwise
+ * of the documents that have a value at the key) and <code>sum</code>, <code>min</code>,
+ * <code>max</code> and <code>avg</code>. The latter only consider number values (like the range
+ * filters ignore values of other types), their result is <code>null</code> if there are no such
+ * values.
+ */
+final class Aggregation {
+
+  static final int MAX_GROUP_BY_KEYS = 10;
+  static final int MAX_AGGREGATES = 20;
+
+  private static final class Aggregate {
+    final String name;
+    final String function;
+    /**
+     * <code>null</code> for count of all documents.
+     */
+    final String key;
+
+    Aggregate(final String name, final String function, final String key) {
+      this.name = requireNonNull(name);
+      this.function = requireNonNull(function);
+      this.key = key;
+    }
+
+    String getExpression() {
+      if ("count".equals(function)) {
+        return key == null ? "count(*)"
+            : "count(*) filter (where " + FilterOperator.getJsonPathExpression(key) + " is not null)";
+      }
+      // only the number values, so the cast to numeric always works
+      return function + "((" + FilterOperator.getJsonPathExpression(key) + ")::numeric) filter (where "
+          + FilterOperator.getTypeCondition(key, "number") + ")";
+    }
+  }
+
+  private final List<String> groupBy;
+  private final List<Aggregate> aggregates;
+
+  private Aggregation(final List<String> groupBy, final List<Aggregate> aggregates) {
+    this.groupBy = Collections.unmodifiableList(groupBy);
+    this.aggregates = Collections.unmodifiableList(aggregates);
+  }
+
+  private static ApiException invalidAggregate(final Object aggregate) {
+    return new ApiException("invalid aggregate: " + toJsonString(aggregate));
+  }
+
+  /**
+   * @param groupBy
+   *          the keys to group by, may be <code>null</code>
+   * @param aggregates
+   *          the json object with the named aggregates
+   */
+  static Aggregation parse(final List<String> groupBy, final Object aggregates) {
+    final List<String> groupByKeys = groupBy != null ? groupBy : Collections.emptyList();
+    if (groupByKeys.size() > MAX_GROUP_BY_KEYS) {
+      throw new ApiException("too many group by keys: " + groupByKeys.size());
+    }
+    for (final String key : groupByKeys) {
+      if (!FilterOperator.isValidKey(key) || FilterOperator.isSpecialKey(key)) {
+        throw new ApiException("invalid group by key: " + key);
+      }
+    }
+
+    if (!(aggregates instanceof Map<?, ?>) || ((Map<?, ?>) aggregates).isEmpty()
+        || ((Map<?, ?>) aggregates).size() > MAX_AGGREGATES) {
+      throw new ApiException("invalid aggregates: " + toJsonString(aggregates));
+    }
+    final List<Aggregate> result = new ArrayList<>();
+    for (final Map.Entry<?, ?> entry : ((Map<?, ?>) aggregates).entrySet()) {
+      if (!(entry.getValue() instanceof Map<?, ?>) || ((Map<?, ?>) entry.getValue()).size() != 1) {
+        throw invalidAggregate(entry.getValue());
+      }
+      final Map.Entry<?, ?> functionEntry = ((Map<?, ?>) entry.getValue()).entrySet().iterator().next();
+      final String function = String.valueOf(functionEntry.getKey());
+      final Object key = functionEntry.getValue();
+      switch (function) {
+      case "count":
+        if (key != null && !(key instanceof String)) {
+          throw invalidAggregate(entry.getValue());
+        }
+        break;
+      case "sum":
+      case "min":
+      case "max":
+      case "avg":
+        if (!(key instanceof String)) {
+          throw invalidAggregate(entry.getValue());
+        }
+        break;
+      default:
+        throw new ApiException("unknown aggregate function: " + function);
+      }
+      if (key != null && (!FilterOperator.isValidKey((String) key) || FilterOperator.isSpecialKey((String) key))) {
+        throw new ApiException("invalid aggregate key: " + key);
+      }
+      result.add(new Aggregate(String.valueOf(entry.getKey()), function, (String) key));
+    }
+    return new Aggregation(groupByKeys, result);
+  }
+
+  int getColumnCount() {
+    return groupBy.size() + aggregates.size();
+  }
+
+  /**
+   * The select list: the group values and then the aggregates (all as text).
+   */
+  String getSelectList() {
+    final List<String> expressions = new ArrayList<>();
+    for (final String key : groupBy) {
+      expressions.add("(" + FilterOperator.getJsonPathExpression(key) + ")::text");
+    }
+    for (final Aggregate aggregate : aggregates) {
+      expressions.add(aggregate.getExpression() + "::text");
+    }
+    return String.join(", ", expressions);
+  }
+
+  /**
+   * @return the group by and order by clauses or <code>null</code> if there is no grouping
+   */
+  String getGroupByAndOrderBy() {
+    if (groupBy.isEmpty()) {
+      return null;
+    }
+    final List<String> expressions = new ArrayList<>();
+    for (final String key : groupBy) {
+      expressions.add(FilterOperator.getJsonPathExpression(key));
+    }
+    final String expressionsString = String.join(", ", expressions);
+    return "group by " + expressionsString + " order by " + expressionsString;
+  }
+
+  /**
+   * Converts a result row (of the select list) to json: <code>{"group": {...}, "aggregates":
+   * {...}}</code>, missing group values are <code>null</code>.
+   */
+  JsonMap toJson(final Object[] row) {
+    final JsonMap group = new JsonMap();
+    for (int i = 0; i < groupBy.size(); ++i) {
+      group.put(groupBy.get(i), row[i] != null ? JsonUtil.readJsonString((String) row[i]) : null);
+    }
+    final JsonMap values = new JsonMap();
+    for (int i = 0; i < aggregates.size(); ++i) {
+      final Object value = row[groupBy.size() + i];
+      values.put(aggregates.get(i).name, value != null ? new JsonStringNumber((String) value) : null);
+    }
+    final JsonMap result = new JsonMap();
+    if (!groupBy.isEmpty()) {
+      result.put("group", group);
+    }
+    return result.add("aggregates", values);
+  }
+
+}
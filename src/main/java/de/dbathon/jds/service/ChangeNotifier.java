@@ -0,0 +1,126 @@
+package de.dbathon.jds.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import de.dbathon.jds.persistence.DatabaseConnection;
+import de.dbathon.jds.persistence.NotificationListener;
+import io.quarkus.runtime.StartupEvent;
+
+/**
+ * Allows waiting for changes of the documents of a database (on any node), this is used for the
+ * long polling of the changes feed.
+ * <p>
+ * The writers call {@link #notifyOnCommit(Integer)}, which sends a postgres notification with the
+ * database id. For each database a sequence is maintained that is incremented on every
+ * notification, the waiters read the sequence, check for changes and then
+ * {@linkplain #awaitChange(Integer, long, long) wait} until the sequence changes.
+ */
+@ApplicationScoped
+public class ChangeNotifier {
+
+  static final String CHANNEL = "jds_change";
+  static final String DELETED_CHANNEL = "jds_database_deleted";
+
+  @Inject
+  DatabaseConnection databaseConnection;
+
+  @Inject
+  NotificationListener notificationListener;
+
+  private final Map<Integer, Long> databaseIdToSequence = new HashMap<>();
+
+  /**
+   * Is incremented if notifications might have been missed, it is added to all sequences.
+   */
+  private long missedSequence = 0;
+
+  void onStart(@Observes final StartupEvent event) {
+    notificationListener.addListener(CHANNEL, new NotificationListener.Listener() {
+      @Override
+      public void notificationReceived(final String payload) {
+        changed(Integer.valueOf(payload));
+      }
+
+      @Override
+      public void notificationsMissed() {
+        allChanged();
+      }
+    });
+    notificationListener.addListener(DELETED_CHANNEL, new NotificationListener.Listener() {
+      @Override
+      public void notificationReceived(final String payload) {
+        deleted(Integer.valueOf(payload));
+      }
+
+      @Override
+      public void notificationsMissed() {
+        // nothing to do, the entries of missed deletes are just kept
+      }
+    });
+  }
+
+  private synchronized void changed(final Integer databaseId) {
+    databaseIdToSequence.merge(databaseId, 1L, Long::sum);
+    notifyAll();
+  }
+
+  /**
+   * Removes the sequence of a deleted database, this also wakes its waiters. The database ids are
+   * not reused, so the sequence cannot reach a previous value again.
+   */
+  private synchronized void deleted(final Integer databaseId) {
+    if (databaseIdToSequence.remove(databaseId) != null) {
+      notifyAll();
+    }
+  }
+
+  private synchronized void allChanged() {
+    ++missedSequence;
+    notifyAll();
+  }
+
+  public synchronized long getSequence(final Integer databaseId) {
+    return missedSequence + databaseIdToSequence.getOrDefault(databaseId, 0L);
+  }
+
+  /**
+   * Waits until the sequence for the given database differs from the given <code>sequence</code>
+   * or until the timeout expires.
+   *
+   * @return whether the sequence changed
+   */
+  public synchronized boolean awaitChange(final Integer databaseId, final long sequence, final long timeoutMillis)
+      throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (getSequence(databaseId) == sequence) {
+      final long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return false;
+      }
+      wait(remaining);
+    }
+    return true;
+  }
+
+  /**
+   * Notifies the waiters for the given database on all nodes once the current transaction is
+   * committed (postgres only delivers one notification per transaction for the same database).
+   */
+  public void notifyOnCommit(final Integer databaseId) {
+    databaseConnection.sendNotification(CHANNEL, databaseId.toString());
+  }
+
+  /**
+   * Removes the sequence of the given database on all nodes once the current transaction (that
+   * deletes the database) is committed.
+   */
+  public void notifyDeletedOnCommit(final Integer databaseId) {
+    databaseConnection.sendNotification(DELETED_CHANNEL, databaseId.toString());
+  }
+
+}
@@ -0,0 +1,77 @@
+package de.dbathon.jds.service;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * The SQL for all filters with a given {@link FilterShape}: the parameters are
+ * {@link FilterParameter}s that are created from the placeholder literals (see
+ * {@link FilterShape#createPlaceholderFilters(Object, IdentityHashMap)}), so they can be
+ * {@linkplain #resolveParameters(List) resolved} for the literals of other filters with the same
+ * shape.
+ */
+final class CompiledFilter {
+
+  /**
+   * <code>null</code> if the filters match all documents.
+   */
+  final String sql;
+  private final List<Object> parameters;
+  private final IdentityHashMap<Object, Integer> placeholderIndexes;
+
+  CompiledFilter(final String sql, final List<Object> parameters,
+      final IdentityHashMap<Object, Integer> placeholderIndexes) {
+    this.sql = sql;
+    this.parameters = new ArrayList<>(parameters);
+    this.placeholderIndexes = requireNonNull(placeholderIndexes);
+  }
+
+  /**
+   * @param literals
+   *          the {@link FilterShape#literals} of filters with the same shape
+   * @return the actual parameters for {@link #sql}
+   */
+  List<Object> resolveParameters(final List<Object> literals) {
+    if (literals.size() != placeholderIndexes.size()) {
+      throw new IllegalArgumentException("unexpected literals: " + literals.size());
+    }
+    final UnaryOperator<Object> literalMapping = value -> {
+      final Integer index = placeholderIndexes.get(value);
+      return index != null ? literals.get(index) : value;
+    };
+    final List<Object> result = new ArrayList<>(parameters.size());
+    for (final Object parameter : parameters) {
+      result.add(parameter instanceof FilterParameter ? ((FilterParameter) parameter).resolve(literalMapping)
+          : parameter);
+    }
+    return result;
+  }
+
+  /**
+   * @param resolvedParameters
+   *          the result of {@link #resolveParameters(List)}
+   * @return the distinct jsonpaths in the given parameters (see
+   *         {@link FilterParameter#jsonPath(Object)})
+   */
+  List<String> getJsonPaths(final List<Object> resolvedParameters) {
+    List<String> result = Collections.emptyList();
+    for (int i = 0; i < parameters.size(); ++i) {
+      if (parameters.get(i) instanceof FilterParameter.JsonPathParameter) {
+        if (result.isEmpty()) {
+          result = new ArrayList<>();
+        }
+        final String jsonPath = (String) resolvedParameters.get(i);
+        if (!result.contains(jsonPath)) {
+          result.add(jsonPath);
+        }
+      }
+    }
+    return result;
+  }
+
+}
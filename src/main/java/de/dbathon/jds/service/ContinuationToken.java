@@ -0,0 +1,57 @@
+package de.dbathon.jds.service;
+
+import static java.util.Objects.requireNonNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import de.dbathon.jds.util.JsonList;
+import de.dbathon.jds.util.JsonUtil;
+
+/**
+ * An opaque token that allows continuing a query (or similar) after the last returned element. The
+ * token is just a json array of values (e.g. the id of the last returned document) encoded with
+ * base64url, the clients should not rely on that format.
+ */
+public class ContinuationToken {
+
+  private final JsonList values;
+
+  public ContinuationToken(final JsonList values) {
+    this.values = requireNonNull(values);
+  }
+
+  public JsonList getValues() {
+    return values;
+  }
+
+  /**
+   * @return the value at the given index as string or <code>null</code> if it is not a string
+   */
+  public String getString(final int index) {
+    if (index < values.size()) {
+      final Object value = values.get(index);
+      return value instanceof String ? (String) value : null;
+    }
+    return null;
+  }
+
+  public String encode() {
+    return Base64.getUrlEncoder().withoutPadding()
+        .encodeToString(JsonUtil.toJsonString(values).getBytes(StandardCharsets.UTF_8));
+  }
+
+  public static ContinuationToken decode(final String token) {
+    try {
+      final Object values = JsonUtil.readJsonBytes(Base64.getUrlDecoder().decode(token));
+      if (values instanceof JsonList) {
+        return new ContinuationToken((JsonList) values);
+      }
+    }
+    catch (final RuntimeException e) {
+      throw new ApiException("invalid continuation token", e);
+    }
+    throw new ApiException("invalid continuation token");
+  }
+
+}
@@ -8,6 +8,7 @@ import javax.inject.Inject;
 import javax.transaction.TransactionScoped;
 
 import de.dbathon.jds.service.DatabaseService.DatabaseInfo;
+import de.dbathon.jds.service.DatabaseService.WriteConcurrency;
 
 /**
  * Caches infos about databases for the current transaction.
@@ -18,8 +19,12 @@ public class DatabaseCache implements Serializable {
   @Inject
   DatabaseService databaseService;
 
+  @Inject
+  DatabaseIdCache databaseIdCache;
+
   /**
-   * Every database in this map has been locked in the current transaction.
+   * Every database in this map has been locked in the current transaction (see
+   * {@link DatabaseService#getDatabaseInfoAndLock(String)}).
    */
   private final Map<String, DatabaseInfo> nameToInfo = new HashMap<>();
 
@@ -45,10 +50,15 @@ public class DatabaseCache implements Serializable {
     if (databaseInfo != null) {
       return databaseInfo.id;
     }
-    // otherwise check nameToId
+    // otherwise check nameToId and then the global cache
     Integer result = nameToId.get(databaseName);
     if (result == null) {
-      result = databaseService.getDatabaseId(databaseName);
+      result = databaseIdCache.get(databaseName);
+      if (result == null) {
+        final long generation = databaseIdCache.getGeneration();
+        result = databaseService.getDatabaseId(databaseName);
+        databaseIdCache.put(databaseName, result, generation);
+      }
       nameToId.put(databaseName, result);
     }
     return result;
@@ -57,7 +67,7 @@ public class DatabaseCache implements Serializable {
   /**
    * This method increments the version of the database once per tranasaction (for each database).
    * This method should only be called if the database is already locked and if updates to documents
-   * in the database will be performed.
+   * in the database will be performed (before the first document is written).
    *
    * @param databaseInfo
    * @return the incremented version for the database
@@ -65,7 +75,12 @@ public class DatabaseCache implements Serializable {
   public String getIncrementedVersion(final DatabaseInfo databaseInfo) {
     String result = idToIncrementedVersion.get(databaseInfo.id);
     if (result == null) {
-      result = databaseService.incrementVersion(databaseInfo);
+      if (databaseService.getWriteConcurrency() == WriteConcurrency.DOCUMENT_LOCK) {
+        result = databaseService.allocateVersion(databaseInfo.id);
+      }
+      else {
+        result = databaseService.incrementVersion(databaseInfo);
+      }
       idToIncrementedVersion.put(databaseInfo.id, result);
     }
     return result;
@@ -0,0 +1,129 @@
+package de.dbathon.jds.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import de.dbathon.jds.persistence.DatabaseConnection;
+import de.dbathon.jds.persistence.NotificationListener;
+import io.quarkus.runtime.StartupEvent;
+
+/**
+ * Caches the ids of databases by name across transactions (the ids never change, but a name can
+ * point to a different id after a rename or delete).
+ * <p>
+ * Entries are invalidated locally by {@link #invalidate(String)} and on all nodes via a postgres
+ * notification that is sent by {@link #invalidateOnCommit(String)}. So after a rename or delete on
+ * another node, the old name might still be mapped to the old id for a short time.
+ */
+@ApplicationScoped
+public class DatabaseIdCache {
+
+  static final String CHANNEL = "jds_database";
+
+  @Inject
+  DatabaseConnection databaseConnection;
+
+  @Inject
+  NotificationListener notificationListener;
+
+  @ConfigProperty(name = "jds.database-id-cache.max-size", defaultValue = "10000")
+  int maxSize;
+
+  /**
+   * Access ordered, so that the least recently used entries are removed first.
+   */
+  private final Map<String, Integer> nameToId = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, Integer> eldest) {
+      return size() > maxSize;
+    }
+  };
+
+  /**
+   * Is incremented on every invalidation, to prevent adding entries that were loaded before the
+   * invalidation.
+   */
+  private long generation = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  void onStart(@Observes final StartupEvent event) {
+    notificationListener.addListener(CHANNEL, new NotificationListener.Listener() {
+      @Override
+      public void notificationReceived(final String payload) {
+        invalidate(payload);
+      }
+
+      @Override
+      public void notificationsMissed() {
+        invalidateAll();
+      }
+    });
+  }
+
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * @return the cached id or <code>null</code>
+   */
+  public Integer get(final String databaseName) {
+    final Integer result;
+    synchronized (this) {
+      result = nameToId.get(databaseName);
+    }
+    (result != null ? hits : misses).incrementAndGet();
+    return result;
+  }
+
+  /**
+   * Adds the given entry, unless there was an invalidation since the given <code>generation</code>
+   * (see {@link #getGeneration()}) was read.
+   */
+  public synchronized void put(final String databaseName, final Integer id, final long generation) {
+    if (this.generation == generation) {
+      nameToId.put(databaseName, id);
+    }
+  }
+
+  public synchronized void invalidate(final String databaseName) {
+    ++generation;
+    nameToId.remove(databaseName);
+  }
+
+  public synchronized void invalidateAll() {
+    ++generation;
+    nameToId.clear();
+  }
+
+  /**
+   * Invalidates the entry for the given name locally and also on all nodes (including this one)
+   * once the current transaction is committed.
+   */
+  public void invalidateOnCommit(final String databaseName) {
+    invalidate(databaseName);
+    databaseConnection.sendNotification(CHANNEL, databaseName);
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public synchronized int getSize() {
+    return nameToId.size();
+  }
+
+}
@@ -3,14 +3,18 @@ package de.dbathon.jds.service;
 import static java.util.Objects.requireNonNull;
 
 import java.io.Serializable;
+import java.util.List;
 import java.util.Random;
 import java.util.regex.Pattern;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.transaction.Transactional;
+import javax.transaction.Transactional.TxType;
 import javax.ws.rs.core.Response.Status;
 
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
 import de.dbathon.jds.persistence.DatabaseConnection;
 import de.dbathon.jds.persistence.RuntimeSqlException;
 import de.dbathon.jds.util.JsonMap;
@@ -24,10 +28,40 @@ public class DatabaseService {
   static final String INITIAL_VERSION = "10";
 
   private static final Class<?>[] INT_STRING_TYPES = new Class<?>[] { Integer.class, String.class };
+  private static final Class<?>[] STRING_LONG_LONG_TYPES = new Class<?>[] { String.class, Long.class, Long.class };
+
+  /**
+   * Controls how concurrent writes to the documents of one database are handled, configured via
+   * <code>jds.write-concurrency</code>.
+   */
+  public enum WriteConcurrency {
+    /**
+     * Every write locks the database row for the rest of the transaction, so all writers to one
+     * database are serialized. The database versions are assigned in commit order.
+     */
+    DATABASE_LOCK,
+    /**
+     * Writers only lock the affected documents and the new database version is allocated in a
+     * separate short transaction, so writers to different documents of one database can proceed in
+     * parallel. The versions are still unique and monotonically increasing, but they are not
+     * necessarily committed in order: a transaction can become visible after another transaction
+     * with a higher version. So the changes feed is not available in this mode.
+     */
+    DOCUMENT_LOCK;
+  }
 
   @Inject
   DatabaseConnection databaseConnection;
 
+  @Inject
+  DatabaseIdCache databaseIdCache;
+
+  @Inject
+  ChangeNotifier changeNotifier;
+
+  @ConfigProperty(name = "jds.write-concurrency", defaultValue = "DATABASE_LOCK")
+  WriteConcurrency writeConcurrency;
+
   public static class DatabaseInfo implements Serializable {
     public final Integer id;
     public final String name;
@@ -65,27 +99,60 @@ public class DatabaseService {
     return id;
   }
 
-  public DatabaseInfo getDatabaseInfoAndLock(final String databaseName) {
-    final Object[] row =
-        databaseConnection.queryNoOrOneResult("select id, version from jds_database where name = ? for update",
-            Object[].class, INT_STRING_TYPES, databaseName);
+  public WriteConcurrency getWriteConcurrency() {
+    return writeConcurrency;
+  }
+
+  private DatabaseInfo getDatabaseInfo(final String databaseName, final boolean lock) {
+    final Object[] row = databaseConnection.queryNoOrOneResult(
+        "select id, version from jds_database where name = ?" + (lock ? " for update" : ""), Object[].class,
+        INT_STRING_TYPES, databaseName);
     if (row == null) {
       throw notFoundException();
     }
     return new DatabaseInfo((Integer) row[0], databaseName, (String) row[1]);
   }
 
+  /**
+   * Returns the {@link DatabaseInfo} for a transaction that wants to write documents to the
+   * database.
+   * <p>
+   * With {@link WriteConcurrency#DOCUMENT_LOCK} the database is not actually locked, the writers
+   * have to lock the documents instead. Renaming or deleting the database is still prevented by the
+   * foreign key of new documents.
+   */
+  public DatabaseInfo getDatabaseInfoAndLock(final String databaseName) {
+    return getDatabaseInfo(databaseName, writeConcurrency == WriteConcurrency.DATABASE_LOCK);
+  }
+
+  public String getDatabaseVersion(final Integer databaseId) {
+    final String version = databaseConnection.queryNoOrOneResult("select version from jds_database where id = ?",
+        String.class, databaseId);
+    if (version == null) {
+      throw notFoundException();
+    }
+    return version;
+  }
+
   private JsonMap databaseJson(final String name, final String version) {
     return new JsonMap().add("name", name).add("version", version);
   }
 
+  /**
+   * Returns the name and version of the database together with the number of documents and the
+   * total size of their data in bytes (as json text, the tombstones are not counted).
+   */
   public JsonMap getDatabase(final String databaseName) {
-    final String version = databaseConnection.queryNoOrOneResult("select version from jds_database where name = ?",
-        String.class, databaseName);
-    if (version == null) {
+    // the statistics are the maintained values plus the not yet merged deltas (see addStatistics())
+    final Object[] row = databaseConnection.queryNoOrOneResult("select d.version, "
+        + "(d.document_count + coalesce(s.document_count, 0))::int8, (d.data_size + coalesce(s.data_size, 0))::int8 "
+        + "from jds_database d left join lateral (select sum(document_count) document_count, sum(data_size) data_size "
+        + "from jds_database_statistics_delta where database_id = d.id) s on true where d.name = ?", Object[].class,
+        STRING_LONG_LONG_TYPES, databaseName);
+    if (row == null) {
       throw notFoundException();
     }
-    return databaseJson(databaseName, version);
+    return databaseJson(databaseName, (String) row[0]).add("documentCount", row[1]).add("dataSize", row[2]);
   }
 
   public static void validateName(final String databaseName) {
@@ -122,7 +189,7 @@ public class DatabaseService {
   }
 
   private DatabaseInfo getDatabaseInfoAndLockAndCheckVersion(final String databaseName, final String version) {
-    final DatabaseInfo info = getDatabaseInfoAndLock(databaseName);
+    final DatabaseInfo info = getDatabaseInfo(databaseName, true);
     if (!version.equals(info.version)) {
       throw new ApiException("version does not match", Status.CONFLICT);
     }
@@ -186,6 +253,7 @@ public class DatabaseService {
       return databaseJson(oldDatabaseName, oldVersion);
     }
     final String newVersion = incrementVersionString(info.version);
+    databaseIdCache.invalidateOnCommit(oldDatabaseName);
     try {
       final int updateCount =
           databaseConnection.executeUpdate("update jds_database set name = ?, version = ? where id = ? and version = ?",
@@ -207,6 +275,14 @@ public class DatabaseService {
 
   public void deleteDatabase(final String databaseName, final String version) {
     final DatabaseInfo info = getDatabaseInfoAndLockAndCheckVersion(databaseName, version);
+    databaseIdCache.invalidateOnCommit(databaseName);
+    changeNotifier.notifyDeletedOnCommit(info.id);
+    // the postgres indexes are dropped separately, see IndexService.dropUnreferencedIndexes()
+    databaseConnection.executeUpdate("delete from jds_index where database_id = ?", info.id);
+    // the tombstones of deleted documents don't count, only the remaining documents prevent the delete
+    databaseConnection.executeUpdate("delete from jds_document where database_id = ? and deleted_at is not null",
+        info.id);
+    databaseConnection.executeUpdate("delete from jds_database_statistics_delta where database_id = ?", info.id);
     try {
       final int updateCount = databaseConnection.executeUpdate("delete from jds_database where id = ?", info.id);
       if (updateCount != 1) {
@@ -239,4 +315,93 @@ public class DatabaseService {
     return newVersion;
   }
 
+  /**
+   * Adds the given changes to the document count and the data size of the database, in the same
+   * transaction as the document changes.
+   * <p>
+   * With {@link WriteConcurrency#DATABASE_LOCK} the database row is locked anyway, so it is just
+   * updated. With {@link WriteConcurrency#DOCUMENT_LOCK} that would serialize the writers again, so
+   * the changes are inserted as a delta instead, the deltas are merged later (see
+   * {@link #mergeStatisticsDeltas(Integer)}).
+   */
+  public void addStatistics(final DatabaseInfo databaseInfo, final long documentCountDelta,
+      final long dataSizeDelta) {
+    if (documentCountDelta == 0 && dataSizeDelta == 0) {
+      return;
+    }
+    if (writeConcurrency == WriteConcurrency.DATABASE_LOCK) {
+      databaseConnection.executeUpdate(
+          "update jds_database set document_count = document_count + ?, data_size = data_size + ? where id = ?",
+          documentCountDelta, dataSizeDelta, databaseInfo.id);
+    }
+    else {
+      databaseConnection.executeUpdate(
+          "insert into jds_database_statistics_delta (database_id, document_count, data_size) values (?, ?, ?)",
+          databaseInfo.id, documentCountDelta, dataSizeDelta);
+    }
+  }
+
+  /**
+   * @return the maintained number of documents of the database (see {@link #getDatabase(String)})
+   */
+  public Long getDocumentCount(final Integer databaseId) {
+    final Long count = databaseConnection.queryNoOrOneResult("select (document_count + coalesce("
+        + "(select sum(document_count) from jds_database_statistics_delta where database_id = d.id), 0))::int8 "
+        + "from jds_database d where d.id = ?", Long.class, databaseId);
+    if (count == null) {
+      throw notFoundException();
+    }
+    return count;
+  }
+
+  public List<Integer> getDatabaseIdsWithStatisticsDeltas() {
+    return databaseConnection.query("select distinct database_id from jds_database_statistics_delta",
+        Integer.class);
+  }
+
+  /**
+   * Merges the (committed) statistics deltas of the given database into the database row, in one
+   * statement, so concurrent readers see either the deltas or the merged values.
+   *
+   * @return the number of merged deltas
+   */
+  public int mergeStatisticsDeltas(final Integer databaseId) {
+    final Long merged = databaseConnection.queryNoOrOneResult("with deleted as ("
+        + "delete from jds_database_statistics_delta where database_id = ? returning document_count, data_size), "
+        + "updated as (update jds_database set "
+        + "document_count = document_count + (select coalesce(sum(document_count), 0) from deleted), "
+        + "data_size = data_size + (select coalesce(sum(data_size), 0) from deleted) where id = ?) "
+        + "select count(*) from deleted", Long.class, databaseId, databaseId);
+    return merged.intValue();
+  }
+
+  /**
+   * Increments the version of the given database in a separate transaction, that is committed
+   * directly, so the database is only locked very briefly. This is used instead of
+   * {@link #incrementVersion(DatabaseInfo)} for {@link WriteConcurrency#DOCUMENT_LOCK}.
+   * <p>
+   * Incrementing the version in the current transaction would keep the database row locked until
+   * that transaction ends, which would serialize all writers to the database again. But the
+   * separate transaction needs a second connection from the pool, while the connection of the
+   * current transaction is still held. So the pool (<code>quarkus.datasource.jdbc.max-size</code>)
+   * needs to be larger than the number of concurrent write requests, otherwise all connections can
+   * be held by requests waiting for a second one (until the acquisition times out).
+   */
+  @Transactional(TxType.REQUIRES_NEW)
+  public String allocateVersion(final Integer databaseId) {
+    final String version = databaseConnection.queryNoOrOneResult(
+        "select version from jds_database where id = ? for no key update", String.class, databaseId);
+    if (version == null) {
+      throw notFoundException();
+    }
+    final String newVersion = incrementVersionString(version);
+    final int updateCount =
+        databaseConnection.executeUpdate("update jds_database set version = ? where id = ?", newVersion, databaseId);
+    if (updateCount != 1) {
+      // the update must work, since we locked above
+      throw new IllegalStateException("version allocation failed unexpectedly: " + updateCount);
+    }
+    return newVersion;
+  }
+
 }
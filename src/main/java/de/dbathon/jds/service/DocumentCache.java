@@ -0,0 +1,165 @@
+package de.dbathon.jds.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * An optional cache for the serialized json of documents (see {@link RawDocument#getJsonBytes()}),
+ * it is disabled if <code>jds.document-cache.max-entries</code> is 0.
+ * <p>
+ * The entries are only returned for the expected version, so the caller has to determine the
+ * current version of the document first. This can be done in the same query that loads the data
+ * only if it differs from the {@linkplain #getVersion(Integer, String) cached version}. That way
+ * the cache does not need to be invalidated across nodes, {@link #invalidate(Integer, String)} just
+ * frees the memory early.
+ * <p>
+ * The least recently used entries are evicted if there are more than
+ * <code>jds.document-cache.max-entries</code> entries or if the total size exceeds
+ * <code>jds.document-cache.max-bytes</code>.
+ */
+@ApplicationScoped
+public class DocumentCache {
+
+  private static class Key {
+    final Integer databaseId;
+    final String documentId;
+
+    Key(final Integer databaseId, final String documentId) {
+      this.databaseId = databaseId;
+      this.documentId = documentId;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * databaseId.hashCode() + documentId.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) obj;
+      return Objects.equals(databaseId, other.databaseId) && Objects.equals(documentId, other.documentId);
+    }
+  }
+
+  private static class Entry {
+    final String version;
+    final byte[] jsonBytes;
+
+    Entry(final String version, final byte[] jsonBytes) {
+      this.version = version;
+      this.jsonBytes = jsonBytes;
+    }
+  }
+
+  @ConfigProperty(name = "jds.document-cache.max-entries", defaultValue = "0")
+  int maxEntries;
+
+  @ConfigProperty(name = "jds.document-cache.max-bytes", defaultValue = "67108864")
+  long maxBytes;
+
+  /**
+   * Access ordered, so that the least recently used entries are evicted first.
+   */
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private long totalBytes = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public boolean isEnabled() {
+    return maxEntries > 0;
+  }
+
+  /**
+   * @return the cached document json or <code>null</code> if there is no entry for the given
+   *         version
+   */
+  public byte[] get(final Integer databaseId, final String documentId, final String version) {
+    final Entry entry;
+    synchronized (this) {
+      entry = entries.get(new Key(databaseId, documentId));
+    }
+    if (entry != null && entry.version.equals(version)) {
+      hits.incrementAndGet();
+      return entry.jsonBytes;
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * @return the version of the cached entry or <code>null</code> if there is none (this does not
+   *         count as a hit or miss)
+   */
+  public String getVersion(final Integer databaseId, final String documentId) {
+    final Entry entry;
+    synchronized (this) {
+      entry = entries.get(new Key(databaseId, documentId));
+    }
+    return entry != null ? entry.version : null;
+  }
+
+  /**
+   * Counts a miss for a document that was not looked up with {@link #get(Integer, String, String)},
+   * because the version already did not match.
+   */
+  void countMiss() {
+    misses.incrementAndGet();
+  }
+
+  private void removed(final Entry entry) {
+    if (entry != null) {
+      totalBytes -= entry.jsonBytes.length;
+    }
+  }
+
+  public void put(final Integer databaseId, final String documentId, final String version, final byte[] jsonBytes) {
+    if (!isEnabled() || jsonBytes.length > maxBytes) {
+      return;
+    }
+    synchronized (this) {
+      removed(entries.put(new Key(databaseId, documentId), new Entry(version, jsonBytes)));
+      totalBytes += jsonBytes.length;
+
+      final Iterator<Entry> iterator = entries.values().iterator();
+      while (entries.size() > maxEntries || totalBytes > maxBytes) {
+        removed(iterator.next());
+        iterator.remove();
+      }
+    }
+  }
+
+  public synchronized void invalidate(final Integer databaseId, final String documentId) {
+    removed(entries.remove(new Key(databaseId, documentId)));
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public synchronized int getSize() {
+    return entries.size();
+  }
+
+  public synchronized long getTotalBytes() {
+    return totalBytes;
+  }
+
+}
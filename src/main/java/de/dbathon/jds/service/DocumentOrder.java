@@ -0,0 +1,242 @@
+package de.dbathon.jds.service;
+
+import static de.dbathon.jds.util.JsonUtil.toJsonString;
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import de.dbathon.jds.util.JsonList;
+import de.dbathon.jds.util.JsonStringNumber;
+
+/**
+ * The order of the documents in a query: a list of keys with type (<code>string</code> or
+ * <code>number</code>) and direction, e.g.
+ * <code>[{"key": "createdAt", "type": "string", "direction": "desc"}]</code>. The id is always
+ * added as last column (with the direction of the last key), so that the order is unique and
+ * keyset continuation tokens work.
+ * <p>
+ * The keys are typed like the range filters: the same expressions are used (see
+ * {@link FilterOperator#getRangeExpression(String, String)}) and only documents that have a value
+ * of the given type at the key are returned. So the declared string and number indexes (see
+ * {@link IndexService}) can be used to answer top N queries with an index scan.
+ */
+final class DocumentOrder {
+
+  static final int MAX_KEYS = 10;
+
+  static final DocumentOrder DEFAULT = new DocumentOrder(Collections.emptyList());
+
+  static final class Column {
+    /**
+     * <code>null</code> for the special keys.
+     */
+    final String type;
+    final String key;
+    final boolean descending;
+
+    Column(final String key, final String type, final boolean descending) {
+      this.key = requireNonNull(key);
+      this.type = type;
+      this.descending = descending;
+    }
+
+    String getExpression() {
+      return type != null ? FilterOperator.getRangeExpression(key, type) : key;
+    }
+
+    String getOrderExpression() {
+      return getExpression() + ("string".equals(type) ? " collate \"C\"" : "") + (descending ? " desc" : "");
+    }
+
+    /**
+     * The expression for the selected value, that is added to the continuation token.
+     */
+    String getSelectExpression() {
+      return "number".equals(type) ? getExpression() + "::text" : getExpression();
+    }
+
+    String getParameterExpression() {
+      if ("string".equals(type)) {
+        return "(? collate \"C\")";
+      }
+      else if ("number".equals(type)) {
+        return "?::jsonb";
+      }
+      return "?";
+    }
+
+    /**
+     * Converts the selected value to the value for the continuation token.
+     */
+    Object toTokenValue(final String selectedValue) {
+      return "number".equals(type) ? new JsonStringNumber(selectedValue) : selectedValue;
+    }
+
+    /**
+     * Converts the value from the continuation token to the parameter.
+     */
+    Object toParameter(final Object tokenValue) {
+      if ("number".equals(type)) {
+        if (!(tokenValue instanceof JsonStringNumber)) {
+          throw new ApiException("invalid continuation token");
+        }
+        return toJsonString(tokenValue);
+      }
+      if (!(tokenValue instanceof String)) {
+        throw new ApiException("invalid continuation token");
+      }
+      return tokenValue;
+    }
+  }
+
+  /**
+   * All columns, the last one is always the id.
+   */
+  final List<Column> columns;
+
+  private DocumentOrder(final List<Column> keyColumns) {
+    final List<Column> columns = new ArrayList<>(keyColumns);
+    final boolean idIncluded = columns.stream().anyMatch(column -> DocumentService.ID_PROPERTY.equals(column.key));
+    if (idIncluded) {
+      // the id is unique, so the columns after it are useless, but the id needs to be last
+      while (!DocumentService.ID_PROPERTY.equals(columns.get(columns.size() - 1).key)) {
+        columns.remove(columns.size() - 1);
+      }
+    }
+    else {
+      columns.add(new Column(DocumentService.ID_PROPERTY, null,
+          !columns.isEmpty() && columns.get(columns.size() - 1).descending));
+    }
+    this.columns = Collections.unmodifiableList(columns);
+  }
+
+  private static ApiException invalidOrder(final Object order) {
+    return new ApiException("invalid order: " + toJsonString(order));
+  }
+
+  /**
+   * @param order
+   *          the json, may be <code>null</code> for the default order (by id)
+   */
+  static DocumentOrder parse(final Object order) {
+    if (order == null) {
+      return DEFAULT;
+    }
+    if (!(order instanceof List<?>) || ((List<?>) order).size() > MAX_KEYS) {
+      throw invalidOrder(order);
+    }
+    final List<Column> columns = new ArrayList<>();
+    for (final Object entry : (List<?>) order) {
+      if (!(entry instanceof Map<?, ?>)) {
+        throw invalidOrder(entry);
+      }
+      final Map<?, ?> map = (Map<?, ?>) entry;
+      final Object key = map.get("key");
+      final Object type = map.get("type");
+      final Object direction = map.get("direction");
+      if (!(key instanceof String) || (direction != null && !"asc".equals(direction) && !"desc".equals(direction))) {
+        throw invalidOrder(entry);
+      }
+      final boolean descending = "desc".equals(direction);
+      if (FilterOperator.isSpecialKey((String) key)) {
+        // the special keys are always strings
+        if (type != null && !"string".equals(type)) {
+          throw invalidOrder(entry);
+        }
+        columns.add(new Column((String) key, null, descending));
+      }
+      else {
+        if (!"string".equals(type) && !"number".equals(type)) {
+          throw invalidOrder(entry);
+        }
+        if (!FilterOperator.isValidKey((String) key)) {
+          throw new ApiException("invalid order key: " + key);
+        }
+        columns.add(new Column((String) key, (String) type, descending));
+      }
+    }
+    return new DocumentOrder(columns);
+  }
+
+  /**
+   * The type conditions for the typed columns, these need to be added to the where clause (this
+   * also makes the partial indexes usable).
+   */
+  List<String> getTypeConditions() {
+    final List<String> result = new ArrayList<>();
+    for (final Column column : columns) {
+      if (column.type != null) {
+        result.add(FilterOperator.getTypeCondition(column.key, column.type));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The columns that need to be selected (in addition to id, version and data) for the
+   * continuation token.
+   */
+  List<String> getSelectExpressions() {
+    final List<String> result = new ArrayList<>();
+    for (final Column column : columns.subList(0, columns.size() - 1)) {
+      result.add(column.getSelectExpression());
+    }
+    return result;
+  }
+
+  String getOrderBy() {
+    final StringBuilder result = new StringBuilder("order by database_id");
+    for (final Column column : columns) {
+      result.append(", ").append(column.getOrderExpression());
+    }
+    return result.toString();
+  }
+
+  /**
+   * Adds the condition for all documents after the position of the given token values to the given
+   * {@link QueryBuilder}.
+   */
+  void addAfterCondition(final QueryBuilder queryBuilder, final JsonList tokenValues) {
+    if (tokenValues.size() != columns.size()) {
+      throw new ApiException("invalid continuation token");
+    }
+    final List<Object> parameters = new ArrayList<>();
+    for (int i = 0; i < columns.size(); ++i) {
+      parameters.add(columns.get(i).toParameter(tokenValues.get(i)));
+    }
+
+    final boolean descending = columns.get(0).descending;
+    if (columns.stream().allMatch(column -> column.descending == descending)) {
+      // a row comparison, that can be used as index condition
+      final StringBuilder left = new StringBuilder();
+      final StringBuilder right = new StringBuilder();
+      for (final Column column : columns) {
+        left.append(left.length() > 0 ? ", " : "").append(column.getExpression());
+        right.append(right.length() > 0 ? ", " : "").append(column.getParameterExpression());
+      }
+      final boolean single = columns.size() == 1;
+      queryBuilder.add((single ? left : "(" + left + ")") + (descending ? " < " : " > ")
+          + (single ? right : "(" + right + ")"), parameters);
+    }
+    else {
+      // (c1 > p1) or (c1 = p1 and c2 < p2) or ...
+      queryBuilder.withOr(() -> {
+        for (int i = 0; i < columns.size(); ++i) {
+          final int end = i;
+          queryBuilder.withAnd(() -> {
+            for (int j = 0; j <= end; ++j) {
+              final Column column = columns.get(j);
+              final String operator = j < end ? " = " : (column.descending ? " < " : " > ");
+              queryBuilder.add(column.getExpression() + operator + column.getParameterExpression(),
+                  parameters.get(j));
+            }
+          });
+        }
+      });
+    }
+  }
+
+}
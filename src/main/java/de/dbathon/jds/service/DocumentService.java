@@ -4,29 +4,41 @@ import static de.dbathon.jds.util.JsonUtil.readJsonString;
 import static de.dbathon.jds.util.JsonUtil.toJsonString;
 import static java.util.Objects.requireNonNull;
 
-import java.io.Serializable;
+import java.math.BigDecimal;
+import java.sql.Statement;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.Set;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.transaction.Transactional;
+import javax.transaction.Transactional.TxType;
 import javax.ws.rs.core.Response.Status;
 
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
 import de.dbathon.jds.persistence.DatabaseConnection;
 import de.dbathon.jds.persistence.RuntimeSqlException;
 import de.dbathon.jds.service.DatabaseService.DatabaseInfo;
+import de.dbathon.jds.service.DatabaseService.WriteConcurrency;
+import de.dbathon.jds.util.JsonList;
 import de.dbathon.jds.util.JsonMap;
-import de.dbathon.jds.util.JsonUtil;
 
 @ApplicationScoped
 @Transactional
@@ -36,9 +48,19 @@ public class DocumentService {
 
   public static final String ID_PROPERTY = "id";
   public static final String VERSION_PROPERTY = "version";
+  /**
+   * Is added to the tombstones of deleted documents in the changes feed.
+   */
+  public static final String DELETED_PROPERTY = "_deleted";
   public static final List<String> SPECIAL_STRING_PROPERTIES =
       Collections.unmodifiableList(Arrays.asList(ID_PROPERTY, VERSION_PROPERTY));
 
+  /**
+   * The group operators in the filters whose entries are values instead of nested filters.
+   */
+  static final Set<String> VALUE_GROUP_OPERATORS =
+      Collections.unmodifiableSet(new HashSet<>(Arrays.asList("contains", "jsonpath", "jsonpath-match")));
+
   public enum OperationType {
     CREATE,
     UPDATE,
@@ -65,9 +87,15 @@ public class DocumentService {
     }
   }
 
+  private static final String TOMBSTONE_DATA_JSON = toJsonString(new JsonMap().add(DELETED_PROPERTY, true));
+
+  private static final int QUERY_FETCH_SIZE = 50;
+
   private static final Class<?>[] STRING_STRING_TYPES = new Class<?>[] { String.class, String.class };
   private static final Class<?>[] STRING_STRING_STRING_TYPES =
       new Class<?>[] { String.class, String.class, String.class };
+  private static final Class<?>[] STRING_STRING_STRING_BOOLEAN_INT_TYPES =
+      new Class<?>[] { String.class, String.class, String.class, Boolean.class, Integer.class };
 
   @Inject
   DatabaseConnection databaseConnection;
@@ -75,77 +103,114 @@ public class DocumentService {
   @Inject
   DatabaseCache databaseCache;
 
-  public static class DocumentInfo implements Serializable {
-    public final DatabaseInfo databaseInfo;
-    public final String id;
-    /**
-     * The document version, which is the version of the database at which the document was inserted
-     * or last updated.
-     * <p>
-     * See {@link DatabaseInfo#version}.
-     */
-    public final String version;
+  @Inject
+  DatabaseService databaseService;
 
-    public DocumentInfo(final DatabaseInfo databaseInfo, final String id, final String version) {
-      this.databaseInfo = requireNonNull(databaseInfo);
-      this.id = requireNonNull(id);
-      this.version = requireNonNull(version);
-    }
-  }
+  @Inject
+  DocumentCache documentCache;
+
+  @Inject
+  ChangeNotifier changeNotifier;
+
+  @Inject
+  FilterCache filterCache;
+
+  @ConfigProperty(name = "jds.multi.batch-size", defaultValue = "500")
+  int multiBatchSize;
 
   private ApiException notFoundException() {
     return new ApiException("document not found", Status.NOT_FOUND);
   }
 
-  public DocumentInfo getDocumentInfoAndLock(final String databaseName, final String documentId) {
-    final DatabaseInfo databaseInfo = databaseCache.getDatabaseInfoAndLock(databaseName);
-    // no need to lock the specific document, since we are locking the whole database
+  public static void validateId(final String documentId) {
+    if (!ID_PATTERN.matcher(documentId).matches()) {
+      throw new ApiException("invalid document id: " + documentId).withDocumentId(documentId);
+    }
+  }
+
+  private String getDocumentVersion(final Integer databaseId, final String documentId) {
     final String version = databaseConnection.queryNoOrOneResult(
-        "select version from jds_document where database_id = ? and id = ?", String.class, databaseInfo.id, documentId);
+        "select version from jds_document where database_id = ? and id = ? and deleted_at is null", String.class,
+        databaseId, documentId);
     if (version == null) {
       throw notFoundException();
     }
-    return new DocumentInfo(databaseInfo, documentId, version);
+    return version;
   }
 
-  public static void validateId(final String documentId) {
-    if (!ID_PATTERN.matcher(documentId).matches()) {
-      throw new ApiException("invalid document id: " + documentId).withDocumentId(documentId);
-    }
+  /**
+   * Just returns the version of the document (only reads the primary key index and the row, but
+   * not the data), this can be used to check whether a document has changed.
+   */
+  public String getDocumentVersion(final String databaseName, final String documentId) {
+    return getDocumentVersion(databaseCache.getDatabaseId(databaseName), documentId);
   }
 
-  private JsonMap buildJsonObject(final String id, final String version, final String dataJson) {
-    final JsonMap result = new JsonMap().add(ID_PROPERTY, id).add(VERSION_PROPERTY, version);
-    final JsonMap data = (JsonMap) JsonUtil.readJsonString(dataJson);
-    result.putAll(data);
-    return result;
+  /**
+   * Returns the document with only the given fields (see {@link FieldsProjection}), the document
+   * cache is not used for that.
+   */
+  public RawDocument getDocument(final String databaseName, final String documentId, final List<String> fields) {
+    if (fields == null) {
+      return getDocument(databaseName, documentId);
+    }
+    final Object[] row = databaseConnection.queryNoOrOneResult(
+        "select version, " + FieldsProjection.getExpression(fields)
+            + " from jds_document where database_id = ? and id = ? and deleted_at is null",
+        Object[].class, STRING_STRING_TYPES, databaseCache.getDatabaseId(databaseName), documentId);
+    if (row == null) {
+      throw notFoundException();
+    }
+    return new RawDocument(documentId, (String) row[0], (String) row[1]);
   }
 
-  public JsonMap getDocument(final String databaseName, final String documentId) {
-    // no locking and only one select
+  public RawDocument getDocument(final String databaseName, final String documentId) {
+    // no locking and usually only one select (if the database id is cached)
+    final Integer databaseId = databaseCache.getDatabaseId(databaseName);
+
+    if (documentCache.isEnabled()) {
+      // the data is only loaded if the version differs from the cached version (versions are never empty)
+      final String cachedVersion = documentCache.getVersion(databaseId, documentId);
+      final Object[] row = databaseConnection.queryNoOrOneResult(
+          "select version, case when version = ? then null else data end from jds_document "
+              + "where database_id = ? and id = ? and deleted_at is null",
+          Object[].class, STRING_STRING_TYPES, cachedVersion != null ? cachedVersion : "", databaseId, documentId);
+      if (row == null) {
+        throw notFoundException();
+      }
+      final String version = (String) row[0];
+      if (row[1] == null) {
+        final byte[] jsonBytes = documentCache.get(databaseId, documentId, version);
+        if (jsonBytes != null) {
+          return RawDocument.fromJsonBytes(documentId, version, jsonBytes);
+        }
+        // the entry was evicted in the meantime, so the data needs to be loaded after all
+      }
+      else {
+        documentCache.countMiss();
+        final RawDocument result = new RawDocument(documentId, version, (String) row[1]);
+        documentCache.put(databaseId, documentId, version, result.getJsonBytes());
+        return result;
+      }
+    }
+
     final Object[] row = databaseConnection.queryNoOrOneResult(
-        "select d.version, d.data from jds_document d "
-            + "join jds_database b on d.database_id = b.id where b.name = ? and d.id = ?",
-        Object[].class, STRING_STRING_TYPES, databaseName, documentId);
+        "select version, data from jds_document where database_id = ? and id = ? and deleted_at is null",
+        Object[].class, STRING_STRING_TYPES, databaseId, documentId);
     if (row == null) {
       throw notFoundException();
     }
-    return buildJsonObject(documentId, (String) row[0], (String) row[1]);
+    final RawDocument result = new RawDocument(documentId, (String) row[0], (String) row[1]);
+    if (documentCache.isEnabled()) {
+      documentCache.put(databaseId, documentId, result.version, result.getJsonBytes());
+    }
+    return result;
   }
 
   private ApiException versionDoesNotMatchException() {
     return new ApiException("document version does not match", Status.CONFLICT);
   }
 
-  private DocumentInfo getDocumentInfoAndLockAndCheckVersion(final String databaseName, final String documentId,
-      final String version) {
-    final DocumentInfo info = getDocumentInfoAndLock(databaseName, documentId);
-    if (version != null && !version.equals(info.version)) {
-      throw versionDoesNotMatchException();
-    }
-    return info;
-  }
-
   private JsonMap validateAndRemoveSpecialProperties(final JsonMap json, final String expectedId,
       final String expectedVersion) {
     final JsonMap result = new JsonMap();
@@ -202,129 +267,359 @@ public class DocumentService {
   }
 
   public String createDocument(final String databaseName, final String documentId, final JsonMap json) {
-    return withApiExceptionDocumentIdHandling(documentId, () -> {
-      validateId(documentId);
-      final DatabaseInfo databaseInfo = databaseCache.getDatabaseInfoAndLock(databaseName);
-      final String dataJson = toJsonString(validateAndRemoveSpecialProperties(json, documentId, null));
-      final String version = databaseCache.getIncrementedVersion(databaseInfo);
-      try {
-        final int insertCount = databaseConnection.executeUpdate(
-            "insert into jds_document (database_id, id, version, data) values (?, ?, ?, ?::jsonb)", databaseInfo.id,
-            documentId, version, dataJson);
-        if (insertCount != 1) {
-          throw new IllegalStateException("unexpected insertCount: " + insertCount);
-        }
-      }
-      catch (final RuntimeSqlException e) {
-        if (e.isIntegrityContraintViolation()) {
-          // document already exists
-          throw new ApiException("document already exists", e, Status.CONFLICT);
-        }
-        throw e;
-      }
-      return version;
-    });
+    return performOperations(databaseName,
+        Collections.singletonList(new Operation(OperationType.CREATE, documentId, json, null))).get(documentId);
   }
 
   public String updateDocument(final String databaseName, final String documentId, final JsonMap json) {
-    return withApiExceptionDocumentIdHandling(documentId, () -> {
-      validateId(documentId);
-      final DocumentInfo info = getDocumentInfoAndLock(databaseName, documentId);
-      final JsonMap processedJson = validateAndRemoveSpecialProperties(json, documentId, info.version);
-
-      // load the existing document and compare to see if the document is unchanged
-      final JsonMap existingJson = (JsonMap) readJsonString(databaseConnection.queryNoOrOneResult(
-          "select data from jds_document where database_id = ? and id = ? and version = ?", String.class,
-          info.databaseInfo.id, documentId, info.version));
-      if (existingJson.equals(processedJson)) {
-        // no changes, don't update
-        return info.version;
-      }
-
-      final String dataJson = toJsonString(processedJson);
-      final String newVersion = databaseCache.getIncrementedVersion(info.databaseInfo);
-
-      final int updateCount = databaseConnection.executeUpdate(
-          "update jds_document set version = ?, data = ?::jsonb where database_id = ? and id = ? and version = ?",
-          newVersion, dataJson, info.databaseInfo.id, documentId, info.version);
-      if (updateCount != 1) {
-        // the update must work, since we locked above
-        throw new IllegalStateException("update failed unexpectedly: " + updateCount);
-      }
-      return newVersion;
-    });
+    return performOperations(databaseName,
+        Collections.singletonList(new Operation(OperationType.UPDATE, documentId, json, null))).get(documentId);
   }
 
   public void deleteDocument(final String databaseName, final String documentId, final String version) {
-    withApiExceptionDocumentIdHandling(documentId, () -> {
-      final DocumentInfo info = getDocumentInfoAndLockAndCheckVersion(databaseName, documentId, version);
-      final int updateCount = databaseConnection
-          .executeUpdate("delete from jds_document where database_id = ? and id = ?", info.databaseInfo.id, info.id);
-      if (updateCount != 1) {
-        // the delete must work, since we locked above
-        throw new IllegalStateException("delete failed unexpectedly: " + updateCount);
+    performOperations(databaseName,
+        Collections.singletonList(new Operation(OperationType.DELETE, documentId, null, version)));
+  }
+
+  private static class ExistingDocument {
+    /**
+     * The document version, which is the version of the database at which the document was inserted
+     * or last updated, see {@link DatabaseInfo#version}.
+     */
+    final String version;
+    /**
+     * Only loaded for documents that will be updated.
+     */
+    final String dataJson;
+    /**
+     * Whether this is just the tombstone of a deleted document.
+     */
+    final boolean deleted;
+    /**
+     * The size of the data in bytes, 0 for tombstones.
+     */
+    final int dataSize;
+
+    ExistingDocument(final String version, final String dataJson, final boolean deleted, final Integer dataSize) {
+      this.version = requireNonNull(version);
+      this.dataJson = dataJson;
+      this.deleted = deleted;
+      this.dataSize = dataSize != null ? dataSize : 0;
+    }
+  }
+
+  private Map<String, ExistingDocument> loadExistingDocuments(final DatabaseInfo databaseInfo,
+      final List<Operation> operations) {
+    final String[] ids = operations.stream().map(operation -> operation.documentId).toArray(String[]::new);
+    final String[] updateIds = operations.stream().filter(operation -> operation.type == OperationType.UPDATE)
+        .map(operation -> operation.documentId).toArray(String[]::new);
+    final Map<String, ExistingDocument> result = new HashMap<>();
+    // the specific documents only need to be locked if the whole database is not locked
+    final boolean lockDocuments = databaseService.getWriteConcurrency() == WriteConcurrency.DOCUMENT_LOCK;
+    // when locking, the rows are locked in the order of the ids, so that concurrent requests with
+    // overlapping documents cannot deadlock
+    for (final Object[] row : databaseConnection.query(
+        "select id, version, case when id = any(?) then data end, deleted_at is not null, data_size "
+            + "from jds_document where database_id = ? and id = any(?)"
+            + (lockDocuments ? " order by id for update" : ""),
+        Object[].class, STRING_STRING_STRING_BOOLEAN_INT_TYPES, updateIds, databaseInfo.id, ids)) {
+      result.put((String) row[0],
+          new ExistingDocument((String) row[1], (String) row[2], (Boolean) row[3], (Integer) row[4]));
+    }
+    return result;
+  }
+
+  private void checkBatchUpdateCounts(final int[] updateCounts, final String operation) {
+    for (final int updateCount : updateCounts) {
+      // with reWriteBatchedInserts the driver does not return the actual counts for inserts
+      if (updateCount != 1 && updateCount != Statement.SUCCESS_NO_INFO) {
+        // the changes must work, since we locked above (the database or the documents)
+        throw new IllegalStateException(operation + " failed unexpectedly: " + updateCount);
       }
-      return null;
-    });
+    }
   }
 
+  /**
+   * @return the number of bytes of the given string in UTF-8 (without encoding it), like
+   *         {@link String#getBytes(java.nio.charset.Charset)} unpaired surrogates are counted as one
+   *         byte (the replacement <code>?</code>)
+   */
+  static int getUtf8Length(final String string) {
+    int result = 0;
+    for (int i = 0; i < string.length(); ++i) {
+      final char c = string.charAt(i);
+      if (c < 0x80) {
+        result += 1;
+      }
+      else if (c < 0x800) {
+        result += 2;
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < string.length()
+          && Character.isLowSurrogate(string.charAt(i + 1))) {
+        result += 4;
+        ++i;
+      }
+      else if (Character.isSurrogate(c)) {
+        result += 1;
+      }
+      else {
+        result += 3;
+      }
+    }
+    return result;
+  }
+
+  private void insertDocuments(final DatabaseInfo databaseInfo, final String version, final List<Object[]> inserts) {
+    final List<Object[]> parametersList = new ArrayList<>();
+    for (final Object[] insert : inserts) {
+      parametersList.add(new Object[] { databaseInfo.id, insert[0], version, insert[1], insert[2] });
+    }
+    try {
+      checkBatchUpdateCounts(databaseConnection.executeBatch(
+          "insert into jds_document (database_id, id, version, data, data_size) values (?, ?, ?, ?::jsonb, ?)",
+          parametersList), "insert");
+    }
+    catch (final RuntimeSqlException e) {
+      if (e.isIntegrityContraintViolation()) {
+        // document already exists
+        final ApiException apiException = new ApiException("document already exists", e, Status.CONFLICT);
+        throw inserts.size() == 1 ? apiException.withDocumentId((String) inserts.get(0)[0]) : apiException;
+      }
+      throw e;
+    }
+  }
+
+  private void updateDocuments(final DatabaseInfo databaseInfo, final String newVersion,
+      final List<Object[]> updates) {
+    final List<Object[]> parametersList = new ArrayList<>();
+    for (final Object[] update : updates) {
+      parametersList.add(new Object[] { newVersion, update[1], update[3], databaseInfo.id, update[0], update[2] });
+    }
+    // this also replaces tombstones
+    checkBatchUpdateCounts(databaseConnection.executeBatch("update jds_document set version = ?, data = ?::jsonb, "
+        + "data_size = ?, deleted_at = null where database_id = ? and id = ? and version = ?", parametersList),
+        "update");
+  }
+
+  private void deleteDocuments(final DatabaseInfo databaseInfo, final String newVersion, final List<String> deletes) {
+    // just replace the documents with tombstones, they are purged later by the TombstoneCompactor
+    final int updateCount = databaseConnection.executeUpdate(
+        "update jds_document set version = ?, data = null, data_size = null, deleted_at = now() "
+            + "where database_id = ? and id = any(?) and deleted_at is null",
+        newVersion, databaseInfo.id, deletes.toArray(new String[deletes.size()]));
+    if (updateCount != deletes.size()) {
+      // the delete must work, since we locked above
+      throw new IllegalStateException("delete failed unexpectedly: " + updateCount);
+    }
+  }
+
+  /**
+   * Performs the given operations with as few statements as possible: the existing documents are
+   * loaded with one query and then all changes are written using JDBC batches.
+   * <p>
+   * The operations are validated in the given order and the first invalid operation results in an
+   * {@link ApiException} (with the document id), so the behavior is the same as performing each
+   * operation separately in one transaction.
+   *
+   * @return the new versions of the created and updated documents
+   */
   public Map<String, String> performOperations(final String databaseName, final Iterable<Operation> operations) {
+    final List<Operation> operationList = new ArrayList<>();
+    operations.forEach(operationList::add);
+
+    final DatabaseInfo databaseInfo = databaseCache.getDatabaseInfoAndLock(databaseName);
+    final Map<String, ExistingDocument> existingDocuments = loadExistingDocuments(databaseInfo, operationList);
+
+    // the new version is only determined after the validation, until then the changed documents are mapped to null
     final Map<String, String> result = new LinkedHashMap<>();
-    for (final Operation operation : operations) {
-      switch (operation.type) {
-      case CREATE: {
-        final String version = createDocument(databaseName, operation.documentId, operation.json);
-        result.put(operation.documentId, version);
-        break;
+    // id, data and the data size
+    final List<Object[]> inserts = new ArrayList<>();
+    // id, data, the existing version and the data size
+    final List<Object[]> updates = new ArrayList<>();
+    final List<String> deletes = new ArrayList<>();
+    final Set<String> seenIds = new HashSet<>();
+    // the changes of the document count and the data size of the database
+    final long[] statisticsDelta = { 0, 0 };
+
+    for (final Operation operation : operationList) {
+      withApiExceptionDocumentIdHandling(operation.documentId, () -> {
+        if (!seenIds.add(operation.documentId)) {
+          throw new ApiException("only one operation per document allowed");
+        }
+        final ExistingDocument existingOrTombstone = existingDocuments.get(operation.documentId);
+        final ExistingDocument existing =
+            existingOrTombstone != null && !existingOrTombstone.deleted ? existingOrTombstone : null;
+        switch (operation.type) {
+        case CREATE: {
+          validateId(operation.documentId);
+          final String dataJson =
+              toJsonString(validateAndRemoveSpecialProperties(operation.json, operation.documentId, null));
+          if (existing != null) {
+            throw new ApiException("document already exists", Status.CONFLICT);
+          }
+          final int dataSize = getUtf8Length(dataJson);
+          if (existingOrTombstone != null) {
+            // replace the tombstone
+            updates.add(new Object[] { operation.documentId, dataJson, existingOrTombstone.version, dataSize });
+          }
+          else {
+            inserts.add(new Object[] { operation.documentId, dataJson, dataSize });
+          }
+          statisticsDelta[0] += 1;
+          statisticsDelta[1] += dataSize;
+          result.put(operation.documentId, null);
+          break;
+        }
+        case UPDATE: {
+          validateId(operation.documentId);
+          if (existing == null) {
+            throw notFoundException();
+          }
+          final JsonMap processedJson =
+              validateAndRemoveSpecialProperties(operation.json, operation.documentId, existing.version);
+          // compare to the existing document to see if the document is unchanged
+          if (readJsonString(existing.dataJson).equals(processedJson)) {
+            // no changes, don't update
+            result.put(operation.documentId, existing.version);
+          }
+          else {
+            final String dataJson = toJsonString(processedJson);
+            final int dataSize = getUtf8Length(dataJson);
+            updates.add(new Object[] { operation.documentId, dataJson, existing.version, dataSize });
+            statisticsDelta[1] += dataSize - existing.dataSize;
+            result.put(operation.documentId, null);
+          }
+          break;
+        }
+        case DELETE:
+          if (existing == null) {
+            throw notFoundException();
+          }
+          if (operation.versionForDelete != null && !operation.versionForDelete.equals(existing.version)) {
+            throw versionDoesNotMatchException();
+          }
+          deletes.add(operation.documentId);
+          statisticsDelta[0] -= 1;
+          statisticsDelta[1] -= existing.dataSize;
+          break;
+        default:
+          throw new IllegalStateException("unexpected type: " + operation.type);
+        }
+        return null;
+      });
+    }
+
+    if (documentCache.isEnabled()) {
+      // the entries would not be used anymore anyway (because the version changes), but free the memory early
+      operationList.forEach(operation -> documentCache.invalidate(databaseInfo.id, operation.documentId));
+    }
+
+    if (!inserts.isEmpty() || !updates.isEmpty() || !deletes.isEmpty()) {
+      // also increment the version for deletes, so that the database version changes whenever any document changes
+      final String newVersion = databaseCache.getIncrementedVersion(databaseInfo);
+      result.replaceAll((id, version) -> version != null ? version : newVersion);
+      if (!inserts.isEmpty()) {
+        insertDocuments(databaseInfo, newVersion, inserts);
       }
-      case UPDATE: {
-        final String version = updateDocument(databaseName, operation.documentId, operation.json);
-        result.put(operation.documentId, version);
-        break;
+      if (!updates.isEmpty()) {
+        updateDocuments(databaseInfo, newVersion, updates);
       }
-      case DELETE:
-        deleteDocument(databaseName, operation.documentId, operation.versionForDelete);
-        break;
-      default:
-        throw new IllegalStateException("unexpected type: " + operation.type);
+      if (!deletes.isEmpty()) {
+        deleteDocuments(databaseInfo, newVersion, deletes);
+      }
+      databaseService.addStatistics(databaseInfo, statisticsDelta[0], statisticsDelta[1]);
+      // the changes feed (the only user of the notifications) is only available with DATABASE_LOCK
+      if (databaseService.getWriteConcurrency() == WriteConcurrency.DATABASE_LOCK) {
+        changeNotifier.notifyOnCommit(databaseInfo.id);
       }
     }
 
     return result;
   }
 
-  private void applyFilterOperator(final QueryBuilder queryBuilder, final String key, final String operatorName,
+  /**
+   * Like {@link #performOperations(String, Iterable)}, but the operations are consumed from the
+   * given {@link Iterator} and performed in batches of <code>jds.multi.batch-size</code>, so only
+   * one batch of documents is in memory at a time. This is used to perform the operations while the
+   * request is still being read.
+   * <p>
+   * All batches are performed in the current transaction (with the same new database version), so
+   * the result is the same as with one call of {@link #performOperations(String, Iterable)}, but
+   * the operations of different batches are not checked against each other (e.g. for duplicate
+   * ids), that is the responsibility of the caller.
+   * <p>
+   * If the operations are read from the request while they are performed, then the transaction
+   * lasts until the complete request is read: with {@link WriteConcurrency#DATABASE_LOCK} all other
+   * writers to the database are blocked after the first batch until the upload is complete and the
+   * transaction needs a timeout that is long enough for the upload (see
+   * <code>jds.multi.transaction-timeout</code>).
+   *
+   * @return the new versions of the created and updated documents
+   */
+  public Map<String, String> performOperationsInBatches(final String databaseName,
+      final Iterator<Operation> operations) {
+    final Map<String, String> result = new LinkedHashMap<>();
+    final List<Operation> batch = new ArrayList<>();
+    while (operations.hasNext()) {
+      batch.add(operations.next());
+      if (batch.size() >= multiBatchSize || !operations.hasNext()) {
+        result.putAll(performOperations(databaseName, batch));
+        batch.clear();
+      }
+    }
+    return result;
+  }
+
+  private FilterNode buildFilterOperatorNode(final String key, final String operatorName,
       final Object rightHandSide) {
     final FilterOperator operator = FilterOperator.FILTER_OPERATORS.get(operatorName);
     if (operator == null) {
       throw new ApiException("unknown operator: " + operatorName);
     }
-    operator.apply(queryBuilder, key, rightHandSide);
+    return operator.toFilterNode(key, rightHandSide);
   }
 
-  private void applyContainsOperator(final QueryBuilder queryBuilder, final Object value) {
+  private FilterNode buildContainsNode(final Object value) {
     if (!(value instanceof JsonMap)) {
       throw new ApiException("invalid operand for contains: " + toJsonString(value));
     }
     // copy the map, because we might modify it below
     final JsonMap map = new JsonMap((JsonMap) value);
-    queryBuilder.withAnd(() -> {
-      // handle special keys
-      for (final String property : SPECIAL_STRING_PROPERTIES) {
-        if (map.containsKey(property)) {
-          final Object idValue = map.remove(property);
-          if (idValue instanceof String) {
-            applyFilterOperator(queryBuilder, property, "=", idValue);
-          }
-          else {
-            // the value does not match
-            queryBuilder.add("false");
-          }
+    final List<FilterNode> nodes = new ArrayList<>();
+    // handle special keys
+    for (final String property : SPECIAL_STRING_PROPERTIES) {
+      if (map.containsKey(property)) {
+        final Object idValue = map.remove(property);
+        if (idValue instanceof String) {
+          nodes.add(buildFilterOperatorNode(property, "=", idValue));
+        }
+        else {
+          // the value does not match
+          nodes.add(FilterNode.FALSE);
         }
       }
+    }
 
-      queryBuilder.add("data @> ?::jsonb", toJsonString(map));
-    });
+    nodes.add(new FilterNode.ContainsNode(map));
+    return new FilterNode.AndNode(nodes);
+  }
+
+  /**
+   * A jsonpath that is evaluated against the data of the document (without id and version) using
+   * <code>@?</code> (or <code>@@</code> for <code>match</code>), both can use the GIN index.
+   * <p>
+   * Both operators return null if the evaluation fails (e.g. for strict paths), so the expression is
+   * repeated with coalesce to keep the node null free, but without hiding the indexable operator.
+   * <code>??</code> is the JDBC escape for the <code>?</code> in the operator.
+   */
+  private FilterNode buildJsonPathNode(final Object value, final boolean match) {
+    if (!(value instanceof String)) {
+      throw new ApiException("invalid operand for jsonpath: " + toJsonString(value));
+    }
+    // blank paths are rejected when the parameter is resolved
+    final String expression = "data " + (match ? "@@" : "@??") + " ?::jsonpath";
+    final FilterParameter parameter = FilterParameter.jsonPath(value);
+    return new FilterNode.SqlNode(expression + " and coalesce(" + expression + ", false)", parameter, parameter);
   }
 
   private List<?> toList(final Iterable<?> filters) {
@@ -337,8 +632,13 @@ public class DocumentService {
     return result;
   }
 
-  private void applyFilters(final QueryBuilder queryBuilder, final Object filters) {
+  /**
+   * @return the (not yet simplified) {@link FilterNode} for the given filters or <code>null</code>
+   *         if there are no filters (e.g. an empty group)
+   */
+  private FilterNode buildFilterNode(final Object filters) {
     if (filters instanceof Map<?, ?>) {
+      final List<FilterNode> nodes = new ArrayList<>();
       for (final Entry<?, ?> entry : ((Map<?, ?>) filters).entrySet()) {
         // keys must be strings
         final String key = String.valueOf(entry.getKey());
@@ -347,130 +647,627 @@ public class DocumentService {
         if (value instanceof Map<?, ?>) {
           // if it is a map then the key is the operator and the value is the right hand side
           for (final Entry<?, ?> operatorEntry : ((Map<?, ?>) value).entrySet()) {
-            applyFilterOperator(queryBuilder, key, String.valueOf(operatorEntry.getKey()), operatorEntry.getValue());
+            nodes.add(buildFilterOperatorNode(key, String.valueOf(operatorEntry.getKey()), operatorEntry.getValue()));
           }
         }
         else {
           // the default operator is =
-          applyFilterOperator(queryBuilder, key, "=", value);
+          nodes.add(buildFilterOperatorNode(key, "=", value));
         }
       }
+      return nodes.isEmpty() ? null : new FilterNode.AndNode(nodes);
     }
     else if (filters instanceof Iterable<?>) {
       final List<?> list = toList((Iterable<?>) filters);
-      if (!list.isEmpty()) {
-        final String operator;
-        final List<?> restList;
-        if (list.get(0) instanceof String) {
-          operator = (String) list.get(0);
-          restList = list.subList(1, list.size());
-        }
-        else {
-          // default to and
-          operator = "and";
-          restList = list;
-        }
-
-        final Consumer<Runnable> queryBuilderWith;
-        Consumer<Object> specialEntryAction = null;
+      if (list.isEmpty()) {
+        return null;
+      }
+      final String operator;
+      final List<?> restList;
+      if (list.get(0) instanceof String) {
+        operator = (String) list.get(0);
+        restList = list.subList(1, list.size());
+      }
+      else {
+        // default to and
+        operator = "and";
+        restList = list;
+      }
+      final Function<Object, FilterNode> entryFunction;
+      switch (operator) {
+      case "contains":
+        entryFunction = this::buildContainsNode;
+        break;
+      case "jsonpath":
+        entryFunction = value -> buildJsonPathNode(value, false);
+        break;
+      case "jsonpath-match":
+        entryFunction = value -> buildJsonPathNode(value, true);
+        break;
+      case "and":
+      case "not":
+      case "or":
+        entryFunction = this::buildFilterNode;
+        break;
+      default:
+        throw new ApiException("unexpected operator: " + operator);
+      }
 
-        switch (operator) {
-        case "contains":
-          // for contains, we need a different entryAction
-          specialEntryAction = entry -> applyContainsOperator(queryBuilder, entry);
-          // fall through
-        case "and":
-          queryBuilderWith = queryBuilder::withAnd;
-          break;
-        case "not":
-          queryBuilderWith = queryBuilder::withNot;
-          break;
-        case "or":
-          queryBuilderWith = queryBuilder::withOr;
-          break;
-        default:
-          throw new ApiException("unexpected operator: " + operator);
+      final List<FilterNode> nodes = new ArrayList<>();
+      for (final Object entry : restList) {
+        final FilterNode node = entryFunction.apply(entry);
+        if (node != null) {
+          nodes.add(node);
         }
+      }
+      // empty groups are just ignored
+      final FilterNode andNode = nodes.isEmpty() ? null : new FilterNode.AndNode(nodes);
 
-        final Consumer<Object> entryAction =
-            specialEntryAction != null ? specialEntryAction : entry -> applyFilters(queryBuilder, entry);
-
-        queryBuilderWith.accept(() -> {
-          restList.forEach(entryAction);
-        });
+      switch (operator) {
+      case "contains":
+      case "jsonpath":
+      case "jsonpath-match":
+      case "and":
+        return andNode;
+      case "not":
+        return andNode != null ? new FilterNode.NotNode(andNode) : null;
+      case "or":
+        return nodes.isEmpty() ? null : new FilterNode.OrNode(nodes);
+      default:
+        throw new IllegalStateException("unexpected operator: " + operator);
       }
     }
     else if (filters == null) {
       // just ignore null
+      return null;
     }
     else {
       throw new ApiException("invalid filters: " + toJsonString(filters));
     }
   }
 
-  public List<JsonMap> queryDocuments(final String databaseName, final Object filters, final Integer limit,
-      final Integer offset) {
+  /**
+   * Translates the filters (with placeholder literals) to a {@link FilterNode}, simplifies it and
+   * renders it.
+   */
+  private CompiledFilter compileFilter(final Object filters) {
+    final IdentityHashMap<Object, Integer> placeholderIndexes = new IdentityHashMap<>();
+    final FilterNode node = buildFilterNode(FilterShape.createPlaceholderFilters(filters, placeholderIndexes));
+    final FilterNode simplifiedNode = node != null ? node.simplify() : FilterNode.TRUE;
+    // true does not need to be rendered
+    if (simplifiedNode == FilterNode.TRUE) {
+      return new CompiledFilter(null, Collections.emptyList(), placeholderIndexes);
+    }
+    final QueryBuilder filterQueryBuilder = new QueryBuilder();
+    filterQueryBuilder.withAnd(() -> simplifiedNode.render(filterQueryBuilder));
+    return new CompiledFilter(filterQueryBuilder.getString(), filterQueryBuilder.getParameters(), placeholderIndexes);
+  }
+
+  /**
+   * Adds the SQL for the given filters to the given {@link QueryBuilder}, the compiled filters are
+   * cached by their shape (see {@link FilterCache}).
+   */
+  private void applyFilters(final QueryBuilder queryBuilder, final Object filters) {
+    final FilterShape shape = FilterShape.of(filters);
+    CompiledFilter compiledFilter = filterCache.get(shape.key);
+    if (compiledFilter == null) {
+      compiledFilter = compileFilter(filters);
+      filterCache.put(shape.key, compiledFilter);
+    }
+    if (compiledFilter.sql != null) {
+      final List<Object> parameters = compiledFilter.resolveParameters(shape.literals);
+      compiledFilter.getJsonPaths(parameters).forEach(this::validateJsonPath);
+      queryBuilder.add(compiledFilter.sql, parameters);
+    }
+  }
+
+  /**
+   * The query results are streamed, so syntax errors in jsonpaths are detected before the query is
+   * executed (postgres parses the jsonpath, so it is guaranteed to be the same syntax). The valid
+   * jsonpaths are remembered in the {@link FilterCache}, so that repeated queries skip this.
+   */
+  private void validateJsonPath(final String jsonPath) {
+    if (filterCache.isValidJsonPath(jsonPath)) {
+      return;
+    }
+    try {
+      databaseConnection.queryNoOrOneResult("select ?::jsonpath::text", String.class, jsonPath);
+      filterCache.addValidJsonPath(jsonPath);
+    }
+    catch (final RuntimeSqlException e) {
+      if ("42601".equals(e.getSqlException().getSQLState())) {
+        throw new ApiException("invalid jsonpath: " + jsonPath, e);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * A validated query for documents, that can be executed using
+   * {@link DocumentService#queryDocuments(DocumentQuery, Consumer)}.
+   */
+  public static class DocumentQuery {
+    private final String sql;
+    private final Object[] parameters;
+    private final int limit;
+    private final DocumentOrder order;
+    private final String databaseVersion;
+
+    private DocumentQuery(final String sql, final Object[] parameters, final int limit, final DocumentOrder order,
+        final String databaseVersion) {
+      this.sql = requireNonNull(sql);
+      this.parameters = requireNonNull(parameters);
+      this.limit = limit;
+      this.order = requireNonNull(order);
+      this.databaseVersion = databaseVersion;
+    }
+
+    /**
+     * The version of the database when the query was built, the result of the query can only change
+     * if this version changes. This is <code>null</code> for
+     * {@link DatabaseService.WriteConcurrency#DOCUMENT_LOCK}, because then versions are not
+     * committed in order, so a change might become visible without a new database version.
+     */
+    public String getDatabaseVersion() {
+      return databaseVersion;
+    }
+  }
+
+  private int validateLimit(final Integer limit) {
+    if (limit == null) {
+      // default to 100
+      return 100;
+    }
+    else if (limit < 0) {
+      throw new ApiException("invalid limit");
+    }
+    else if (limit > 1000) {
+      throw new ApiException("limit too high");
+    }
+    else {
+      return limit;
+    }
+  }
+
+  /**
+   * Builds a query for the documents matching the given filters ordered by the given order (see
+   * {@link DocumentOrder}, by id if it is <code>null</code>).
+   * <p>
+   * Instead of the <code>offset</code> a <code>continuationToken</code> (as returned by
+   * {@link #queryDocuments(DocumentQuery, Consumer)}) can be given to continue after the last
+   * document of the previous page, this is efficient independent of the number of skipped
+   * documents.
+   * <p>
+   * If <code>fields</code> is not <code>null</code>, then the documents only contain these fields
+   * (see {@link FieldsProjection}).
+   */
+  public DocumentQuery buildDocumentQuery(final String databaseName, final Object filters, final Integer limit,
+      final Integer offset, final String continuationToken, final List<String> fields, final Object order) {
+    final JsonList afterValues;
+    if (continuationToken != null) {
+      if (offset != null) {
+        throw new ApiException("offset and continuation token cannot be combined");
+      }
+      afterValues = ContinuationToken.decode(continuationToken).getValues();
+    }
+    else {
+      afterValues = null;
+    }
+    final DocumentOrder documentOrder = DocumentOrder.parse(order);
+
     final Integer databaseId = databaseCache.getDatabaseId(databaseName);
 
     final QueryBuilder queryBuilder = new QueryBuilder();
-    queryBuilder.add("select id, version, data from jds_document where");
+    final StringBuilder select = new StringBuilder("select id, version, ")
+        .append(fields != null ? FieldsProjection.getExpression(fields) : "data");
+    documentOrder.getSelectExpressions().forEach(expression -> select.append(", ").append(expression));
+    queryBuilder.add(select.append(" from jds_document where").toString());
     queryBuilder.withAnd(() -> {
       queryBuilder.add("database_id = ?", databaseId);
+      // also allows using the partial index on data
+      queryBuilder.add("deleted_at is null");
+      // only documents with values of the expected types, this also allows using the partial indexes
+      documentOrder.getTypeConditions().forEach(queryBuilder::add);
+
+      if (afterValues != null) {
+        documentOrder.addAfterCondition(queryBuilder, afterValues);
+      }
 
       applyFilters(queryBuilder, filters);
     });
 
-    // use both columns of the primary key index, so that that index should be used
-    queryBuilder.add("order by database_id, id");
+    // for the default order this uses both columns of the primary key index
+    queryBuilder.add(documentOrder.getOrderBy());
 
-    Integer effectiveLimit;
-    if (limit == null) {
-      // default to 100
-      effectiveLimit = 100;
+    final int effectiveLimit = validateLimit(limit);
+    queryBuilder.add("limit ?", effectiveLimit);
+
+    if (offset != null) {
+      if (offset < 0) {
+        throw new ApiException("invalid offset");
+      }
+      queryBuilder.add("offset ?", offset);
     }
-    else {
-      if (limit < 0) {
-        throw new ApiException("invalid limit");
+
+    final String databaseVersion = databaseService.getWriteConcurrency() == WriteConcurrency.DATABASE_LOCK
+        ? databaseService.getDatabaseVersion(databaseId)
+        : null;
+
+    return new DocumentQuery(queryBuilder.getString(), queryBuilder.getParametersArray(), effectiveLimit,
+        documentOrder, databaseVersion);
+  }
+
+  /**
+   * Executes the given query and passes each document to the given <code>documentConsumer</code>
+   * as soon as it is read, the documents are not collected in memory.
+   *
+   * @return the continuation token for the next page or <code>null</code> if there are no more
+   *         documents (i.e. if less documents than the limit were returned)
+   */
+  public String queryDocuments(final DocumentQuery query, final Consumer<RawDocument> documentConsumer) {
+    final List<DocumentOrder.Column> columns = query.order.columns;
+    final Class<?>[] columnTypes = new Class<?>[2 + columns.size()];
+    Arrays.fill(columnTypes, String.class);
+    final int[] count = { 0 };
+    final Object[][] lastRow = { null };
+    databaseConnection.queryStreaming(query.sql, QUERY_FETCH_SIZE, Object[].class, columnTypes, row -> {
+      final RawDocument document = new RawDocument((String) row[0], (String) row[1], (String) row[2]);
+      ++count[0];
+      lastRow[0] = row;
+      documentConsumer.accept(document);
+    }, query.parameters);
+    if (query.limit > 0 && count[0] == query.limit) {
+      // there might be more documents, the token contains the values of the order columns (the id is last)
+      final JsonList values = new JsonList();
+      for (int i = 0; i < columns.size() - 1; ++i) {
+        values.add(columns.get(i).toTokenValue((String) lastRow[0][3 + i]));
       }
-      else if (limit > 1000) {
-        throw new ApiException("limit too high");
+      values.add(lastRow[0][0]);
+      return new ContinuationToken(values).encode();
+    }
+    return null;
+  }
+
+  /**
+   * A validated query for the changed documents of a database, that can be executed using
+   * {@link DocumentService#queryChanges(ChangesQuery, Consumer)}.
+   */
+  public static class ChangesQuery {
+    private final Integer databaseId;
+    private final String sql;
+    private final Object[] parameters;
+    private final int limit;
+    /**
+     * The position (version and optionally id) after which the changes start, <code>null</code>
+     * for all documents.
+     */
+    private final JsonList position;
+    /**
+     * Just checks whether there are any changes.
+     */
+    private final String existsSql;
+    private final Object[] existsParameters;
+
+    private ChangesQuery(final Integer databaseId, final String sql, final Object[] parameters, final int limit,
+        final JsonList position, final String existsSql, final Object[] existsParameters) {
+      this.databaseId = requireNonNull(databaseId);
+      this.sql = requireNonNull(sql);
+      this.parameters = requireNonNull(parameters);
+      this.limit = limit;
+      this.position = position;
+      this.existsSql = requireNonNull(existsSql);
+      this.existsParameters = requireNonNull(existsParameters);
+    }
+  }
+
+  /**
+   * @param position
+   *          the version or the version and id of a changes position
+   * @param purgedVersion
+   *          the highest version of the purged tombstones (may be <code>null</code>)
+   * @return whether purged tombstones might be missing after the given position
+   */
+  static boolean isPurgedPosition(final JsonList position, final String purgedVersion) {
+    if (purgedVersion == null) {
+      return false;
+    }
+    // the versions can be compared lexicographically, see DatabaseInfo.version
+    final int comparison = ((String) position.get(0)).compareTo(purgedVersion);
+    // the tombstones are not purged in (version, id) order, so with an id in the position the tombstones with the same
+    // version and a larger id might already be purged
+    return position.size() == 1 ? comparison < 0 : comparison <= 0;
+  }
+
+  /**
+   * Builds a query for the documents that were changed after the given version (or after the
+   * position of the given continuation token), ordered by version and id.
+   * <p>
+   * Deleted documents are included as tombstones (just id, version and
+   * <code>{@value #DELETED_PROPERTY}: true</code>) until they are purged by the
+   * {@link TombstoneCompactor}, so clients that did not sync for longer than the retention period
+   * need to start from scratch: if tombstones with a version after the given position were purged,
+   * then the request fails with {@link Status#GONE}.
+   * <p>
+   * This is not supported with {@link WriteConcurrency#DOCUMENT_LOCK}: the versions are not
+   * necessarily committed in order, so a reader could skip a change that is committed after it read
+   * a later version.
+   */
+  public ChangesQuery buildChangesQuery(final String databaseName, final String since, final Integer limit,
+      final String continuationToken) {
+    if (databaseService.getWriteConcurrency() == WriteConcurrency.DOCUMENT_LOCK) {
+      throw new ApiException("the changes feed is not available with write concurrency DOCUMENT_LOCK",
+          Status.NOT_IMPLEMENTED);
+    }
+    final JsonList position;
+    if (continuationToken != null) {
+      if (since != null) {
+        throw new ApiException("since and continuation token cannot be combined");
       }
-      else {
-        effectiveLimit = limit;
+      final ContinuationToken token = ContinuationToken.decode(continuationToken);
+      final int size = token.getValues().size();
+      if (token.getString(0) == null || size > 2 || (size == 2 && token.getString(1) == null)) {
+        throw new ApiException("invalid continuation token");
+      }
+      position = token.getValues();
+    }
+    else if (since != null) {
+      position = new JsonList().addElement(since);
+    }
+    else {
+      position = null;
+    }
+
+    final Integer databaseId = databaseCache.getDatabaseId(databaseName);
+
+    if (position != null) {
+      final String purgedVersion = databaseConnection.queryNoOrOneResult(
+          "select purged_version from jds_database where id = ?", String.class, databaseId);
+      if (isPurgedPosition(position, purgedVersion)) {
+        throw new ApiException("the changes since " + position.get(0)
+            + " are not available anymore (deleted documents were purged), start from scratch", Status.GONE);
       }
     }
+
+    final Consumer<QueryBuilder> applyConditions = queryBuilder -> queryBuilder.withAnd(() -> {
+      queryBuilder.add("database_id = ?", databaseId);
+
+      if (position != null) {
+        if (position.size() == 1) {
+          queryBuilder.add("version > ?", position.get(0));
+        }
+        else {
+          queryBuilder.add("(version, id) > (?, ?)", position.get(0), position.get(1));
+        }
+      }
+    });
+
+    final QueryBuilder queryBuilder = new QueryBuilder();
+    queryBuilder.add("select id, version, data from jds_document where");
+    applyConditions.accept(queryBuilder);
+    // matches the index on (database_id, version, id)
+    queryBuilder.add("order by database_id, version, id");
+    final int effectiveLimit = validateLimit(limit);
     queryBuilder.add("limit ?", effectiveLimit);
 
-    if (offset != null) {
-      if (offset < 0) {
-        throw new ApiException("invalid offset");
+    final QueryBuilder existsQueryBuilder = new QueryBuilder();
+    existsQueryBuilder.add("select 1 from jds_document where");
+    applyConditions.accept(existsQueryBuilder);
+    existsQueryBuilder.add("limit 1");
+
+    return new ChangesQuery(databaseId, queryBuilder.getString(), queryBuilder.getParametersArray(), effectiveLimit,
+        position, existsQueryBuilder.getString(), existsQueryBuilder.getParametersArray());
+  }
+
+  /**
+   * Executes the given query like {@link #queryDocuments(DocumentQuery, Consumer)}.
+   *
+   * @return the continuation token for the position after the last document (as <code>next</code>)
+   *         and whether there might be more changes (as <code>more</code>)
+   */
+  public JsonMap queryChanges(final ChangesQuery query, final Consumer<RawDocument> documentConsumer) {
+    final int[] count = { 0 };
+    final RawDocument[] last = { null };
+    databaseConnection.queryStreaming(query.sql, QUERY_FETCH_SIZE, Object[].class, STRING_STRING_STRING_TYPES,
+        row -> {
+          // the data is null for tombstones
+          final RawDocument document = new RawDocument((String) row[0], (String) row[1],
+              row[2] != null ? (String) row[2] : TOMBSTONE_DATA_JSON);
+          ++count[0];
+          last[0] = document;
+          documentConsumer.accept(document);
+        }, query.parameters);
+
+    final JsonList nextPosition;
+    if (last[0] != null) {
+      nextPosition = new JsonList().addElement(last[0].version).addElement(last[0].id);
+    }
+    else {
+      // no changes, continue from the same position (the empty string is before all versions)
+      nextPosition = query.position != null ? query.position : new JsonList().addElement("");
+    }
+    return new JsonMap().add("next", new ContinuationToken(nextPosition).encode()).add("more",
+        query.limit > 0 && count[0] == query.limit);
+  }
+
+  /**
+   * Waits (at most <code>timeoutMillis</code>) until the given query has a result. This does not
+   * use a transaction, so no connection is held while waiting.
+   */
+  @Transactional(TxType.NOT_SUPPORTED)
+  public void awaitChanges(final ChangesQuery query, final long timeoutMillis) {
+    final long deadline = System.currentTimeMillis() + timeoutMillis;
+    try {
+      while (true) {
+        // read the sequence before checking, so that no change is missed in between
+        final long sequence = changeNotifier.getSequence(query.databaseId);
+        final boolean found =
+            databaseConnection.queryNoOrOneResult(query.existsSql, Integer.class, query.existsParameters) != null;
+        final long remaining = deadline - System.currentTimeMillis();
+        if (found || remaining <= 0 || !changeNotifier.awaitChange(query.databaseId, sequence, remaining)) {
+          return;
+        }
       }
-      queryBuilder.add("offset ?", offset);
     }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
 
-    final List<Object[]> rows = databaseConnection.query(queryBuilder.getString(), Object[].class,
-        STRING_STRING_STRING_TYPES, queryBuilder.getParametersArray());
+  /**
+   * Runs the given query with <code>explain</code> and returns the plan together with the SQL and
+   * the parameters. With <code>analyze</code> the query is actually executed (but the documents are
+   * not returned).
+   */
+  public JsonMap explainDocumentQuery(final DocumentQuery query, final boolean analyze) {
+    final String planJson = databaseConnection.queryNoOrOneResult(
+        "explain (" + (analyze ? "analyze, buffers, " : "") + "format json) " + query.sql, String.class,
+        query.parameters);
+    return new JsonMap().add("sql", query.sql).add("parameters", toJsonParameters(query.parameters))
+        .add("plan", readJsonString(planJson));
+  }
 
-    final List<JsonMap> result = new ArrayList<>();
-    for (final Object[] row : rows) {
-      result.add(buildJsonObject((String) row[0], (String) row[1], (String) row[2]));
+  /**
+   * Converts the given SQL parameters to json, arrays (e.g. for <code>id = any(?)</code>) are
+   * converted to lists.
+   */
+  static JsonList toJsonParameters(final Object[] parameters) {
+    final JsonList result = new JsonList();
+    for (final Object parameter : parameters) {
+      result.add(parameter instanceof Object[] ? toJsonParameters((Object[]) parameter) : parameter);
     }
     return result;
   }
 
-  public Long countDocuments(final String databaseName, final Object filters) {
+  public List<Integer> getDatabaseIdsWithExpiredTombstones(final Duration retention) {
+    return databaseConnection.query("select distinct database_id from jds_document "
+        + "where deleted_at is not null and deleted_at < now() - ? * interval '1 second'", Integer.class,
+        retention.getSeconds());
+  }
+
+  /**
+   * Deletes up to <code>limit</code> tombstones of the given database that are older than the given
+   * <code>retention</code>.
+   * <p>
+   * Tombstones might be replaced concurrently by new documents with the same id, so the same locks
+   * as for writing are used: the database for {@link WriteConcurrency#DATABASE_LOCK} and the
+   * documents (skipping locked ones) for {@link WriteConcurrency#DOCUMENT_LOCK}.
+   * <p>
+   * The highest purged version is recorded in the database row, the changes feed is incomplete for
+   * positions before it (see {@link #buildChangesQuery(String, String, Integer, String)}).
+   *
+   * @return the number of deleted tombstones
+   */
+  public int purgeExpiredTombstones(final Integer databaseId, final Duration retention, final int limit) {
+    if (databaseService.getWriteConcurrency() == WriteConcurrency.DATABASE_LOCK) {
+      if (databaseConnection.queryNoOrOneResult("select id from jds_database where id = ? for update", Integer.class,
+          databaseId) == null) {
+        // the database was deleted in the meantime
+        return 0;
+      }
+    }
+    final Long purged = databaseConnection.queryNoOrOneResult("with deleted as ("
+        + "delete from jds_document where ctid = any(array("
+        + "select ctid from jds_document where database_id = ? and deleted_at is not null "
+        + "and deleted_at < now() - ? * interval '1 second' limit ? for update skip locked)) returning version), "
+        + "updated as (update jds_database set purged_version = greatest(purged_version, "
+        + "(select max(version) from deleted)) where id = ? and exists (select 1 from deleted)) "
+        + "select count(*) from deleted", Long.class, databaseId, retention.getSeconds(), limit, databaseId);
+    return purged.intValue();
+  }
+
+  /**
+   * Counts the documents matching the given filters.
+   * <p>
+   * With <code>estimate</code> the count is not computed, instead the row estimate of the planner is
+   * returned (this is only as good as the statistics of postgres), without filters the maintained
+   * document count of the database is returned (which is exact). With <code>countUpTo</code> the
+   * counting stops after that many documents, so the result is the minimum of the actual count and
+   * <code>countUpTo</code>.
+   */
+  public Long countDocuments(final String databaseName, final Object filters, final boolean estimate,
+      final Integer countUpTo) {
+    if (estimate && countUpTo != null) {
+      throw new ApiException("estimate and countUpTo cannot be combined");
+    }
+    if (countUpTo != null && countUpTo < 1) {
+      throw new ApiException("invalid countUpTo: " + countUpTo);
+    }
     final Integer databaseId = databaseCache.getDatabaseId(databaseName);
+    if (estimate && filters == null) {
+      return databaseService.getDocumentCount(databaseId);
+    }
 
     final QueryBuilder queryBuilder = new QueryBuilder();
-    queryBuilder.add("select count(*) from jds_document where");
+    queryBuilder.add("select " + (estimate || countUpTo != null ? "1" : "count(*)") + " from jds_document where");
     queryBuilder.withAnd(() -> {
       queryBuilder.add("database_id = ?", databaseId);
+      queryBuilder.add("deleted_at is null");
 
       applyFilters(queryBuilder, filters);
     });
 
-    return databaseConnection.queryNoOrOneResult(queryBuilder.getString(), Long.class,
-        queryBuilder.getParametersArray());
+    if (estimate) {
+      final String planJson = databaseConnection.queryNoOrOneResult("explain (format json) " + queryBuilder.getString(),
+          String.class, queryBuilder.getParametersArray());
+      return getPlanRows(readJsonString(planJson));
+    }
+    else if (countUpTo != null) {
+      queryBuilder.add("limit ?", countUpTo);
+      return databaseConnection.queryNoOrOneResult("select count(*) from (" + queryBuilder.getString() + ") t",
+          Long.class, queryBuilder.getParametersArray());
+    }
+    else {
+      return databaseConnection.queryNoOrOneResult(queryBuilder.getString(), Long.class,
+          queryBuilder.getParametersArray());
+    }
+  }
+
+  /**
+   * @return the "Plan Rows" of the top node of the given plan (the result of
+   *         <code>explain (format json)</code>)
+   */
+  static long getPlanRows(final Object plan) {
+    if (plan instanceof List<?> && ((List<?>) plan).size() == 1 && ((List<?>) plan).get(0) instanceof Map<?, ?>) {
+      final Object topNode = ((Map<?, ?>) ((List<?>) plan).get(0)).get("Plan");
+      if (topNode instanceof Map<?, ?> && ((Map<?, ?>) topNode).get("Plan Rows") != null) {
+        return new BigDecimal(((Map<?, ?>) topNode).get("Plan Rows").toString()).longValue();
+      }
+    }
+    throw new IllegalStateException("unexpected plan: " + toJsonString(plan));
+  }
+
+  /**
+   * Aggregates the documents matching the given filters (see {@link Aggregation}), the groups are
+   * ordered by their values and at most <code>limit</code> groups are returned.
+   */
+  public List<JsonMap> aggregateDocuments(final String databaseName, final Object filters,
+      final List<String> groupBy, final Object aggregates, final Integer limit) {
+    final Aggregation aggregation = Aggregation.parse(groupBy, aggregates);
+    final Integer databaseId = databaseCache.getDatabaseId(databaseName);
+
+    final QueryBuilder queryBuilder = new QueryBuilder();
+    queryBuilder.add("select " + aggregation.getSelectList() + " from jds_document where");
+    queryBuilder.withAnd(() -> {
+      queryBuilder.add("database_id = ?", databaseId);
+      queryBuilder.add("deleted_at is null");
+
+      applyFilters(queryBuilder, filters);
+    });
+
+    final String groupByAndOrderBy = aggregation.getGroupByAndOrderBy();
+    if (groupByAndOrderBy != null) {
+      queryBuilder.add(groupByAndOrderBy);
+      queryBuilder.add("limit ?", validateLimit(limit));
+    }
+
+    final Class<?>[] columnTypes = new Class<?>[aggregation.getColumnCount()];
+    Arrays.fill(columnTypes, String.class);
+    final List<JsonMap> result = new ArrayList<>();
+    for (final Object[] row : databaseConnection.query(queryBuilder.getString(), Object[].class, columnTypes,
+        queryBuilder.getParametersArray())) {
+      result.add(aggregation.toJson(row));
+    }
+    return result;
   }
 
 }
@@ -0,0 +1,96 @@
+package de.dbathon.jds.service;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the SQL expression that selects only the given fields (keys like in the filters, but
+ * without array indexes) from <code>data</code>, so that only the requested subtrees are
+ * transferred from postgres.
+ * <p>
+ * The result has the same structure as the original data, missing fields are also missing in the
+ * result (and not null) and objects are only included if they contain at least one of the fields.
+ * If both a key and a key below it are requested (e.g. <code>a</code> and <code>a.b</code>), then
+ * the complete value of the outer key is selected.
+ * <p>
+ * The expression does not contain any parameters (the keys are validated and contain no
+ * characters that need escaping), so the SQL only depends on the fields.
+ */
+final class FieldsProjection {
+
+  static final int MAX_FIELDS = 100;
+
+  private FieldsProjection() {}
+
+  /**
+   * The tree of the requested keys, a node without children means the complete value.
+   */
+  private static class Node {
+    final Map<String, Node> children = new LinkedHashMap<>();
+    boolean complete = false;
+  }
+
+  static String getExpression(final List<String> fields) {
+    if (fields.isEmpty() || fields.size() > MAX_FIELDS) {
+      throw new ApiException("invalid number of fields: " + fields.size());
+    }
+    final Node root = new Node();
+    for (final String field : fields) {
+      if (!FilterOperator.isValidKey(field) || field.indexOf('[') >= 0) {
+        throw new ApiException("invalid field: " + field);
+      }
+      Node node = root;
+      for (final String name : field.split("\\.")) {
+        if (node.complete) {
+          break;
+        }
+        node = node.children.computeIfAbsent(name, key -> new Node());
+      }
+      node.complete = true;
+      node.children.clear();
+    }
+    return getObjectExpression("", root);
+  }
+
+  private static String getObjectExpression(final String key, final Node node) {
+    final StringBuilder result = new StringBuilder("(");
+    for (final Map.Entry<String, Node> entry : node.children.entrySet()) {
+      final String childKey = key.isEmpty() ? entry.getKey() : key + "." + entry.getKey();
+      final String pathExpression = FilterOperator.getJsonPathExpression(childKey);
+      final String valueExpression =
+          entry.getValue().complete ? pathExpression : getObjectExpression(childKey, entry.getValue());
+      if (result.length() > 1) {
+        result.append(" || ");
+      }
+      // missing values are left out instead of being null, the same for objects without any of the
+      // requested keys (or scalars in place of an object)
+      result.append("case when ");
+      appendMissingCondition(result, childKey, entry.getValue());
+      result.append(" then '{}'::jsonb else jsonb_build_object('").append(entry.getKey()).append("', ")
+          .append(valueExpression).append(") end");
+    }
+    return result.append(")").toString();
+  }
+
+  /**
+   * Appends the condition that none of the requested values below the given key exist. This only
+   * checks the paths of the complete values (instead of comparing the object expression with
+   * <code>'{}'</code>), so that the expression does not grow exponentially with the depth.
+   */
+  private static void appendMissingCondition(final StringBuilder result, final String key, final Node node) {
+    if (node.complete) {
+      result.append(FilterOperator.getJsonPathExpression(key)).append(" is null");
+      return;
+    }
+    boolean first = true;
+    for (final Map.Entry<String, Node> entry : node.children.entrySet()) {
+      if (!first) {
+        result.append(" and ");
+      }
+      first = false;
+      appendMissingCondition(result, key + "." + entry.getKey(), entry.getValue());
+    }
+  }
+
+}
@@ -0,0 +1,86 @@
+package de.dbathon.jds.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Caches the {@link CompiledFilter}s by {@link FilterShape#key}, so that repeated queries with the
+ * same filter structure (but different values) skip the translation of the filters to SQL. The SQL
+ * strings are then also identical, so the prepared statements of the driver are reused.
+ * <p>
+ * The compiled filters do not depend on any data, so the entries never need to be invalidated.
+ * <p>
+ * The jsonpaths that were validated by postgres are also remembered (in a separate LRU set with the
+ * same maximum size), since their validity does not depend on any data either.
+ */
+@ApplicationScoped
+public class FilterCache {
+
+  @ConfigProperty(name = "jds.filter-cache.max-size", defaultValue = "1000")
+  int maxSize;
+
+  /**
+   * Access ordered, so that the least recently used entries are removed first.
+   */
+  private final Map<String, CompiledFilter> shapeToFilter = new LinkedHashMap<String, CompiledFilter>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, CompiledFilter> eldest) {
+      return size() > maxSize;
+    }
+  };
+
+  /**
+   * Access ordered, the values are not used.
+   */
+  private final Map<String, Boolean> validJsonPaths = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+      return size() > maxSize;
+    }
+  };
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @return the cached filter or <code>null</code>
+   */
+  CompiledFilter get(final String shapeKey) {
+    final CompiledFilter result;
+    synchronized (this) {
+      result = shapeToFilter.get(shapeKey);
+    }
+    (result != null ? hits : misses).incrementAndGet();
+    return result;
+  }
+
+  synchronized void put(final String shapeKey, final CompiledFilter compiledFilter) {
+    shapeToFilter.put(shapeKey, compiledFilter);
+  }
+
+  synchronized boolean isValidJsonPath(final String jsonPath) {
+    return validJsonPaths.get(jsonPath) != null;
+  }
+
+  synchronized void addValidJsonPath(final String jsonPath) {
+    validJsonPaths.put(jsonPath, Boolean.TRUE);
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public synchronized int getSize() {
+    return shapeToFilter.size();
+  }
+
+}
@@ -0,0 +1,416 @@
+package de.dbathon.jds.service;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import de.dbathon.jds.util.JsonList;
+import de.dbathon.jds.util.JsonMap;
+
+/**
+ * The intermediate representation of the filters: the filter json is first translated to a tree of
+ * {@link FilterNode}s, which is then {@linkplain #simplify() simplified} and finally
+ * {@linkplain #render(QueryBuilder) rendered} using a {@link QueryBuilder}.
+ * <p>
+ * The simplification folds constants, removes double negations, merges equality filters on
+ * <code>data</code> into one containment check (which can use the GIN index) and turns "or"s of
+ * equality filters into one "in" like check.
+ * <p>
+ * All nodes are "null free", i.e. the rendered SQL expressions never evaluate to null, so that
+ * negations behave as expected.
+ * <p>
+ * The simplification and the rendered SQL must only depend on the "shape" of the filters (see
+ * {@link FilterShape}) and never on the literal values, the parameters that are derived from the
+ * literal values are added as {@link FilterParameter}s. That way the result can be reused for all
+ * filters with the same shape (see {@link CompiledFilter}).
+ */
+abstract class FilterNode {
+
+  static final FilterNode TRUE = new ConstantNode(true);
+  static final FilterNode FALSE = new ConstantNode(false);
+
+  /**
+   * @return the simplified node, might be this node
+   */
+  FilterNode simplify() {
+    return this;
+  }
+
+  abstract void render(QueryBuilder queryBuilder);
+
+  static FilterNode constant(final boolean value) {
+    return value ? TRUE : FALSE;
+  }
+
+  /**
+   * Just some SQL expression with parameters that is not touched by the simplification.
+   */
+  static class SqlNode extends FilterNode {
+    final String expression;
+    final List<Object> parameters;
+
+    SqlNode(final String expression, final Object... parameters) {
+      this.expression = requireNonNull(expression);
+      this.parameters = Arrays.asList(parameters);
+    }
+
+    SqlNode(final String expression, final List<?> parameters) {
+      this.expression = requireNonNull(expression);
+      this.parameters = new ArrayList<>(parameters);
+    }
+
+    @Override
+    void render(final QueryBuilder queryBuilder) {
+      queryBuilder.add(expression, parameters);
+    }
+  }
+
+  static class ConstantNode extends FilterNode {
+    final boolean value;
+
+    private ConstantNode(final boolean value) {
+      this.value = value;
+    }
+
+    @Override
+    void render(final QueryBuilder queryBuilder) {
+      queryBuilder.add(Boolean.toString(value));
+    }
+  }
+
+  /**
+   * <code>data @&gt; ?</code>, i.e. the document contains the given json.
+   */
+  static class ContainsNode extends FilterNode {
+    final JsonMap json;
+
+    ContainsNode(final JsonMap json) {
+      this.json = requireNonNull(json);
+    }
+
+    @Override
+    FilterNode simplify() {
+      // every document contains the empty object
+      return json.isEmpty() ? TRUE : this;
+    }
+
+    @Override
+    void render(final QueryBuilder queryBuilder) {
+      queryBuilder.add("data @> ?::jsonb", FilterParameter.json(json));
+    }
+  }
+
+  /**
+   * <code>data @&gt; any(?)</code>, i.e. the document contains at least one of the given jsons.
+   */
+  static class ContainsAnyNode extends FilterNode {
+    final List<JsonMap> jsons;
+
+    ContainsAnyNode(final List<JsonMap> jsons) {
+      this.jsons = requireNonNull(jsons);
+    }
+
+    @Override
+    FilterNode simplify() {
+      if (jsons.isEmpty()) {
+        return FALSE;
+      }
+      else if (jsons.size() == 1) {
+        return new ContainsNode(jsons.get(0)).simplify();
+      }
+      for (final JsonMap json : jsons) {
+        if (json.isEmpty()) {
+          return TRUE;
+        }
+      }
+      return this;
+    }
+
+    @Override
+    void render(final QueryBuilder queryBuilder) {
+      queryBuilder.add("data @> any(?::jsonb[])", FilterParameter.jsonArray(jsons));
+    }
+  }
+
+  /**
+   * One of the special keys (<code>id</code> or <code>version</code>) is one of the given values
+   * (the values might contain duplicates, they are not removed to keep the SQL independent of the
+   * values).
+   */
+  static class SpecialKeyInNode extends FilterNode {
+    final String key;
+    final List<String> values;
+
+    SpecialKeyInNode(final String key, final List<String> values) {
+      this.key = requireNonNull(key);
+      this.values = requireNonNull(values);
+    }
+
+    @Override
+    FilterNode simplify() {
+      return values.isEmpty() ? FALSE : this;
+    }
+
+    @Override
+    void render(final QueryBuilder queryBuilder) {
+      if (values.size() == 1) {
+        queryBuilder.add(key + " = ?", FilterParameter.value(values.get(0)));
+      }
+      else {
+        queryBuilder.add(key + " = any(?)", FilterParameter.stringArray(values));
+      }
+    }
+  }
+
+  static class NotNode extends FilterNode {
+    final FilterNode child;
+
+    NotNode(final FilterNode child) {
+      this.child = requireNonNull(child);
+    }
+
+    @Override
+    FilterNode simplify() {
+      final FilterNode simplifiedChild = child.simplify();
+      if (simplifiedChild instanceof ConstantNode) {
+        return constant(!((ConstantNode) simplifiedChild).value);
+      }
+      else if (simplifiedChild instanceof NotNode) {
+        // not not x is just x
+        return ((NotNode) simplifiedChild).child;
+      }
+      return new NotNode(simplifiedChild);
+    }
+
+    @Override
+    void render(final QueryBuilder queryBuilder) {
+      queryBuilder.withNot(() -> child.render(queryBuilder));
+    }
+  }
+
+  private abstract static class GroupNode extends FilterNode {
+    final List<FilterNode> children;
+
+    GroupNode(final List<FilterNode> children) {
+      this.children = requireNonNull(children);
+    }
+
+    abstract boolean isAnd();
+
+    abstract GroupNode create(List<FilterNode> children);
+
+    /**
+     * Tries to merge the given node into one of the nodes in <code>result</code> (they are not
+     * constants and not groups of the same kind).
+     *
+     * @return whether the node was merged
+     */
+    abstract boolean mergeInto(List<FilterNode> result, FilterNode node);
+
+    private List<FilterNode> merge(final List<FilterNode> nodes) {
+      final List<FilterNode> result = new ArrayList<>();
+      for (final FilterNode node : nodes) {
+        if (!mergeInto(result, node)) {
+          result.add(node);
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Removes the constants that don't change the result.
+     *
+     * @return <code>null</code> or the constant that determines the result (false for and, true
+     *         for or)
+     */
+    private FilterNode removeConstants(final List<FilterNode> nodes) {
+      for (final FilterNode node : nodes) {
+        if (node instanceof ConstantNode && ((ConstantNode) node).value != isAnd()) {
+          return node;
+        }
+      }
+      nodes.removeIf(node -> node instanceof ConstantNode);
+      return null;
+    }
+
+    @Override
+    FilterNode simplify() {
+      final List<FilterNode> simplifiedChildren = new ArrayList<>();
+      addSimplifiedChildren(simplifiedChildren);
+      FilterNode constantResult = removeConstants(simplifiedChildren);
+      if (constantResult != null) {
+        return constantResult;
+      }
+
+      // the merged nodes are simplified again, so they might be constants
+      final List<FilterNode> merged = merge(simplifiedChildren);
+      constantResult = removeConstants(merged);
+      if (constantResult != null) {
+        return constantResult;
+      }
+
+      if (merged.isEmpty()) {
+        return constant(isAnd());
+      }
+      else if (merged.size() == 1) {
+        return merged.get(0);
+      }
+      return create(merged);
+    }
+
+    /**
+     * Also flattens nested groups of the same kind.
+     */
+    private void addSimplifiedChildren(final List<FilterNode> result) {
+      for (final FilterNode child : children) {
+        final FilterNode simplifiedChild = child.simplify();
+        if (simplifiedChild instanceof GroupNode && ((GroupNode) simplifiedChild).isAnd() == isAnd()) {
+          result.addAll(((GroupNode) simplifiedChild).children);
+        }
+        else {
+          result.add(simplifiedChild);
+        }
+      }
+    }
+
+    @Override
+    void render(final QueryBuilder queryBuilder) {
+      final Runnable runnable = () -> children.forEach(child -> child.render(queryBuilder));
+      if (isAnd()) {
+        queryBuilder.withAnd(runnable);
+      }
+      else {
+        queryBuilder.withOr(runnable);
+      }
+    }
+  }
+
+  static class AndNode extends GroupNode {
+    AndNode(final List<FilterNode> children) {
+      super(children);
+    }
+
+    @Override
+    boolean isAnd() {
+      return true;
+    }
+
+    @Override
+    GroupNode create(final List<FilterNode> children) {
+      return new AndNode(children);
+    }
+
+    @Override
+    boolean mergeInto(final List<FilterNode> result, final FilterNode node) {
+      for (int i = 0; i < result.size(); ++i) {
+        final FilterNode existing = result.get(i);
+        if (node instanceof ContainsNode && existing instanceof ContainsNode) {
+          final JsonMap merged = mergeContains(((ContainsNode) existing).json, ((ContainsNode) node).json);
+          if (merged != null) {
+            result.set(i, new ContainsNode(merged).simplify());
+            return true;
+          }
+        }
+        // special key nodes are not merged, the intersection would depend on the values
+      }
+      return false;
+    }
+  }
+
+  static class OrNode extends GroupNode {
+    OrNode(final List<FilterNode> children) {
+      super(children);
+    }
+
+    @Override
+    boolean isAnd() {
+      return false;
+    }
+
+    @Override
+    GroupNode create(final List<FilterNode> children) {
+      return new OrNode(children);
+    }
+
+    private static List<JsonMap> getContainsJsons(final FilterNode node) {
+      if (node instanceof ContainsNode) {
+        return Collections.singletonList(((ContainsNode) node).json);
+      }
+      else if (node instanceof ContainsAnyNode) {
+        return ((ContainsAnyNode) node).jsons;
+      }
+      return null;
+    }
+
+    @Override
+    boolean mergeInto(final List<FilterNode> result, final FilterNode node) {
+      final List<JsonMap> jsons = getContainsJsons(node);
+      for (int i = 0; i < result.size(); ++i) {
+        final FilterNode existing = result.get(i);
+        final List<JsonMap> existingJsons = getContainsJsons(existing);
+        if (jsons != null && existingJsons != null) {
+          final List<JsonMap> mergedJsons = new ArrayList<>(existingJsons);
+          mergedJsons.addAll(jsons);
+          result.set(i, new ContainsAnyNode(mergedJsons).simplify());
+          return true;
+        }
+        else if (node instanceof SpecialKeyInNode && existing instanceof SpecialKeyInNode
+            && ((SpecialKeyInNode) node).key.equals(((SpecialKeyInNode) existing).key)) {
+          final List<String> values = new ArrayList<>(((SpecialKeyInNode) existing).values);
+          values.addAll(((SpecialKeyInNode) node).values);
+          result.set(i, new SpecialKeyInNode(((SpecialKeyInNode) node).key, values).simplify());
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Merges two containment jsons into one, so that <code>data @&gt; result</code> is equivalent to
+   * <code>data @&gt; a and data @&gt; b</code>.
+   *
+   * @return the merged json or <code>null</code> if they cannot be merged (if both contain a scalar
+   *         value for the same key: even equal values are not merged, because the result must not
+   *         depend on the values)
+   */
+  static JsonMap mergeContains(final JsonMap a, final JsonMap b) {
+    final JsonMap result = new JsonMap(a);
+    for (final Map.Entry<String, Object> entry : b.entrySet()) {
+      final String key = entry.getKey();
+      if (!result.containsKey(key)) {
+        result.put(key, entry.getValue());
+      }
+      else {
+        final Object merged = mergeContainsValues(result.get(key), entry.getValue());
+        if (merged == null) {
+          return null;
+        }
+        result.put(key, merged);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the merged value or <code>null</code> if the values cannot be merged
+   */
+  private static Object mergeContainsValues(final Object a, final Object b) {
+    if (a instanceof JsonMap && b instanceof JsonMap) {
+      return mergeContains((JsonMap) a, (JsonMap) b);
+    }
+    else if (a instanceof List<?> && b instanceof List<?>) {
+      // an array contains all elements of both arrays if it contains both arrays
+      final JsonList result = new JsonList();
+      result.addAll((List<?>) a);
+      result.addAll((List<?>) b);
+      return result;
+    }
+    return null;
+  }
+
+}
@@ -3,6 +3,7 @@ package de.dbathon.jds.service;
 import static de.dbathon.jds.util.JsonUtil.toJsonString;
 import static java.util.Objects.requireNonNull;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -15,9 +16,9 @@ import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+import de.dbathon.jds.util.JsonList;
 import de.dbathon.jds.util.JsonMap;
 import de.dbathon.jds.util.JsonStringNumber;
-import de.dbathon.jds.util.JsonUtil;
 
 public abstract class FilterOperator {
 
@@ -37,7 +38,9 @@ public abstract class FilterOperator {
 
     filterOperators.put("in", new InOperator());
 
-    // TODO: prefix (mainly for id), like, ilike
+    filterOperators.put("prefix", new PrefixOperator());
+    filterOperators.put("like", new LikeOperator("like"));
+    filterOperators.put("ilike", new LikeOperator("ilike"));
 
     FILTER_OPERATORS = Collections.unmodifiableMap(filterOperators);
   }
@@ -47,21 +50,41 @@ public abstract class FilterOperator {
    */
   protected static final String VALID_NAME_PATTERN_STRING = "[a-zA-Z0-9_\\-]+";
   protected static final String VALID_INDEX_PATTERN_STRING = "\\[(?:[1-9][0-9]{0,8}|0)\\]";
+  /**
+   * <code>[*]</code> matches any element of an array, it is only supported by the operators that
+   * are translated to containment checks ("=" and "in").
+   */
+  protected static final String WILDCARD_INDEX = "[*]";
+  protected static final String VALID_WILDCARD_INDEX_PATTERN_STRING = "\\[\\*\\]";
 
   protected static final Pattern VALID_KEY_PATTERN = Pattern.compile(
       VALID_NAME_PATTERN_STRING + "(?:\\." + VALID_NAME_PATTERN_STRING + "|" + VALID_INDEX_PATTERN_STRING + ")*");
 
-  protected static final Pattern NAME_OR_INDEX_PATTERN =
-      Pattern.compile(VALID_NAME_PATTERN_STRING + "|" + VALID_INDEX_PATTERN_STRING);
+  protected static final Pattern VALID_CONTAINS_KEY_PATTERN =
+      Pattern.compile(VALID_NAME_PATTERN_STRING + "(?:\\." + VALID_NAME_PATTERN_STRING + "|"
+          + VALID_INDEX_PATTERN_STRING + "|" + VALID_WILDCARD_INDEX_PATTERN_STRING + ")*");
 
-  public abstract void apply(final QueryBuilder queryBuilder, final String key, final Object rightHandSide);
+  protected static final Pattern NAME_OR_INDEX_PATTERN = Pattern.compile(
+      VALID_NAME_PATTERN_STRING + "|" + VALID_INDEX_PATTERN_STRING + "|" + VALID_WILDCARD_INDEX_PATTERN_STRING);
+
+  /**
+   * @return the {@link FilterNode} for the given key and right hand side (not yet simplified)
+   */
+  abstract FilterNode toFilterNode(final String key, final Object rightHandSide);
 
   protected static boolean isSpecialKey(final String key) {
     return DocumentService.ID_PROPERTY.equals(key) || DocumentService.VERSION_PROPERTY.equals(key);
   }
 
-  protected String getJsonPathExpression(final String key) {
-    if (!VALID_KEY_PATTERN.matcher(key).matches()) {
+  public static boolean isValidKey(final String key) {
+    return VALID_KEY_PATTERN.matcher(key).matches();
+  }
+
+  protected static String getJsonPathExpression(final String key) {
+    if (!isValidKey(key)) {
+      if (VALID_CONTAINS_KEY_PATTERN.matcher(key).matches()) {
+        throw new ApiException(WILDCARD_INDEX + " is only supported for the operators = and in: " + key);
+      }
       throw new ApiException("invalid filter key: " + key);
     }
     final StringBuilder result = new StringBuilder("data");
@@ -79,6 +102,143 @@ public abstract class FilterOperator {
     return result.toString();
   }
 
+  /**
+   * @return a condition that is true if the value at the given key has the given json type and
+   *         false otherwise (never null)
+   */
+  static String getTypeCondition(final String key, final String jsonType) {
+    return "coalesce(jsonb_typeof(" + getJsonPathExpression(key) + "), 'undefined') = '" + jsonType + "'";
+  }
+
+  /**
+   * Returns the expression that is used for range comparisons of values of the given json type
+   * (<code>string</code> or <code>number</code>): strings are compared as text (with the "C"
+   * collation) and numbers as jsonb.
+   * <p>
+   * The range filters use exactly this expression together with
+   * {@link #getTypeCondition(String, String)}, so that the matching expression indexes (see
+   * {@link IndexService}) can be used.
+   */
+  static String getRangeExpression(final String key, final String jsonType) {
+    switch (jsonType) {
+    case "string":
+      return "(" + getJsonPathExpression(key) + " #>> '{}')";
+    case "number":
+      return "(" + getJsonPathExpression(key) + ")";
+    default:
+      throw new IllegalArgumentException("unexpected type: " + jsonType);
+    }
+  }
+
+  private static List<String> getKeyParts(final String key) {
+    final List<String> result = new ArrayList<>();
+    final Matcher matcher = NAME_OR_INDEX_PATTERN.matcher(key);
+    while (matcher.find()) {
+      result.add(matcher.group());
+    }
+    return result;
+  }
+
+  /**
+   * Builds the json that is contained in the data iff the value at the given key (which may
+   * contain array indexes including {@link #WILDCARD_INDEX}) is the given scalar, array indexes are
+   * just translated to arrays with one element.
+   * <p>
+   * So for keys with wildcards the containment is exactly "any element equals the value", for keys
+   * with other array indexes it is only a necessary condition (see {@link ArrayKey}).
+   */
+  static JsonMap buildContainsValue(final String key, final Object rightHandSide) {
+    if (!VALID_CONTAINS_KEY_PATTERN.matcher(key).matches()) {
+      throw new ApiException("invalid filter key: " + key);
+    }
+    return (JsonMap) buildPartsContainsValue(getKeyParts(key), rightHandSide);
+  }
+
+  private static Object buildPartsContainsValue(final List<String> keyParts, final Object rightHandSide) {
+    Object result = rightHandSide;
+    for (int i = keyParts.size() - 1; i >= 0; --i) {
+      final String keyPart = keyParts.get(i);
+      result = keyPart.startsWith("[") ? new JsonList().addElement(result) : new JsonMap().add(keyPart, result);
+    }
+    return result;
+  }
+
+  /**
+   * A key (valid for {@link #buildContainsValue(String, Object)}) split at the last array index
+   * that is not a wildcard: the containment check for the complete key ignores the position, so the
+   * position has to be checked exactly by checking the containment of the rest at the value of the
+   * prefix.
+   * <p>
+   * Array indexes after a wildcard cannot be handled that way, so they are not supported.
+   */
+  private static class ArrayKey {
+    /**
+     * <code>null</code> if there are no array indexes (except wildcards).
+     */
+    final String indexedPrefix;
+    final List<String> rest;
+
+    private ArrayKey(final String indexedPrefix, final List<String> rest) {
+      this.indexedPrefix = indexedPrefix;
+      this.rest = rest;
+    }
+
+    static ArrayKey of(final String key) {
+      final List<String> keyParts = getKeyParts(key);
+      int lastIndex = -1;
+      boolean wildcardSeen = false;
+      for (int i = 0; i < keyParts.size(); ++i) {
+        final String keyPart = keyParts.get(i);
+        if (WILDCARD_INDEX.equals(keyPart)) {
+          wildcardSeen = true;
+        }
+        else if (keyPart.startsWith("[")) {
+          if (wildcardSeen) {
+            throw new ApiException("array indexes after " + WILDCARD_INDEX + " are not supported: " + key);
+          }
+          lastIndex = i;
+        }
+      }
+      if (lastIndex < 0) {
+        return new ArrayKey(null, keyParts);
+      }
+      final StringBuilder prefix = new StringBuilder();
+      for (int i = 0; i <= lastIndex; ++i) {
+        final String keyPart = keyParts.get(i);
+        if (i > 0 && !keyPart.startsWith("[")) {
+          prefix.append('.');
+        }
+        prefix.append(keyPart);
+      }
+      return new ArrayKey(prefix.toString(), keyParts.subList(lastIndex + 1, keyParts.size()));
+    }
+  }
+
+  /**
+   * Returns the smallest string that is greater than all strings with the given prefix in the "C"
+   * collation (i.e. in code point order): the last code point that can be incremented is
+   * incremented and the rest is removed.
+   *
+   * @return the upper bound or <code>null</code> if there is none (empty prefix or only
+   *         {@link Character#MAX_CODE_POINT}s)
+   */
+  static String getPrefixUpperBound(final String prefix) {
+    int end = prefix.length();
+    while (end > 0) {
+      final int codePoint = prefix.codePointBefore(end);
+      final int charCount = Character.charCount(codePoint);
+      if (codePoint < Character.MAX_CODE_POINT) {
+        int next = codePoint + 1;
+        if (next >= Character.MIN_SURROGATE && next <= Character.MAX_SURROGATE) {
+          next = Character.MAX_SURROGATE + 1;
+        }
+        return prefix.substring(0, end - charCount) + new String(Character.toChars(next));
+      }
+      end -= charCount;
+    }
+    return null;
+  }
+
   private static class SimpleOperator extends FilterOperator {
 
     private final String operator;
@@ -101,75 +261,75 @@ public abstract class FilterOperator {
       return false;
     }
 
-    protected void addToQueryBuilder(final QueryBuilder queryBuilder, final String expression,
-        final Object... parameters) {
+    protected FilterNode coalescedNode(final String expression, final Object... parameters) {
       /**
        * We don't want null to propagate in logical expressions, mainly because "not null" is null,
        * but we would like it to be "true", so always coalesce it to false.
        */
-      queryBuilder.add((negate ? "not coalesce(" : "coalesce(") + expression + ", false)", parameters);
+      return new FilterNode.SqlNode((negate ? "not coalesce(" : "coalesce(") + expression + ", false)", parameters);
     }
 
-    protected void applyNonSpecialKey(final QueryBuilder queryBuilder, final String key, final Object rightHandSide) {
-      final StringBuilder builder = new StringBuilder();
-      final String pathExpression = getJsonPathExpression(key);
-      builder.append(pathExpression).append(" ");
-      final String parameter;
-
-      final boolean isEqualsOperator = "=".equals(operator);
-      if (!isEqualsOperator && rightHandSide instanceof String) {
-        /**
-         * For comparisons of strings use the "C" collation to have predictable results independent
-         * of the default collation of the database.
-         */
-        builder.append("#>> '{}' ").append(operator).append(" (? collate \"C\")");
-        parameter = (String) rightHandSide;
-      }
-      else {
-        builder.append(operator).append(" ?::jsonb");
-        parameter = toJsonString(rightHandSide);
-      }
-
-      if (!isEqualsOperator) {
+    protected FilterNode nonSpecialKeyNode(final String key, final Object rightHandSide) {
+      if (!"=".equals(operator)) {
         /**
          * For all operators except "=" also make sure the type matches, postgres will compare
          * numbers with strings etc. but we don't really want that, if the types do not match, then
          * it should be false.
          */
         final String expectedType;
+        final String parameterExpression;
+        final FilterParameter parameter;
         if (rightHandSide instanceof String) {
           expectedType = "string";
+          /**
+           * For comparisons of strings use the "C" collation to have predictable results
+           * independent of the default collation of the database.
+           */
+          parameterExpression = "(? collate \"C\")";
+          parameter = FilterParameter.value(rightHandSide);
         }
         else if (rightHandSide instanceof JsonStringNumber) {
           expectedType = "number";
+          parameterExpression = "?::jsonb";
+          parameter = FilterParameter.json(rightHandSide);
         }
         else {
           throw new IllegalStateException(
               "unexpected right ahand side for operator " + operator + ": " + rightHandSide);
         }
 
-        builder.append(" and jsonb_typeof(").append(pathExpression).append(") = '").append(expectedType).append("'");
+        /**
+         * The type condition is false if the value is missing, so the whole expression is never
+         * null and we don't need the coalesce (which would prevent the usage of the indexes).
+         */
+        return new FilterNode.SqlNode(getTypeCondition(key, expectedType) + " and "
+            + getRangeExpression(key, expectedType) + " " + operator + " " + parameterExpression, parameter);
+      }
+      else {
+        return coalescedNode(getJsonPathExpression(key) + " = ?::jsonb", FilterParameter.json(rightHandSide));
       }
+    }
 
-      addToQueryBuilder(queryBuilder, builder.toString(), parameter);
+    protected FilterNode specialKeyNode(final String key, final String rightHandSide) {
+      return coalescedNode(key + " " + operator + " ?", FilterParameter.value(rightHandSide));
     }
 
     @Override
-    public void apply(final QueryBuilder queryBuilder, final String key, final Object rightHandSide) {
+    FilterNode toFilterNode(final String key, final Object rightHandSide) {
       if (!isTypeAllowed(rightHandSide)) {
         throw new ApiException("invalid right hand side for operator " + operator + ": " + toJsonString(rightHandSide));
       }
       if (isSpecialKey(key)) {
         if (rightHandSide instanceof String) {
-          addToQueryBuilder(queryBuilder, key + " " + operator + " ?", rightHandSide);
+          return specialKeyNode(key, (String) rightHandSide);
         }
         else {
           // else it is false (the special keys are always string not null)
-          queryBuilder.add(negate ? "true" : "false");
+          return FilterNode.constant(negate);
         }
       }
       else {
-        applyNonSpecialKey(queryBuilder, key, rightHandSide);
+        return nonSpecialKeyNode(key, rightHandSide);
       }
     }
 
@@ -181,43 +341,84 @@ public abstract class FilterOperator {
       super("=", false, allowedTypes);
     }
 
-    private JsonMap buildContainsValue(final String key, final Object rightHandSide) {
-      if (!VALID_KEY_PATTERN.matcher(key).matches()) {
-        throw new ApiException("invalid filter key: " + key);
+    @Override
+    protected FilterNode nonSpecialKeyNode(final String key, final Object rightHandSide) {
+      // we can use the jsonb_path_ops index to optimize this
+      final FilterNode containsNode = new FilterNode.ContainsNode(buildContainsValue(key, rightHandSide));
+      final ArrayKey arrayKey = ArrayKey.of(key);
+      if (arrayKey.indexedPrefix == null) {
+        return containsNode;
       }
-      final JsonMap result = new JsonMap();
-      JsonMap lastMap = result;
-      String lastKey = null;
-
-      final Matcher matcher = NAME_OR_INDEX_PATTERN.matcher(key);
-      while (matcher.find()) {
-        final String nextKey = matcher.group();
-        if (lastKey != null) {
-          final JsonMap newMap = new JsonMap();
-          lastMap.put(lastKey, newMap);
-          lastMap = newMap;
-        }
-        lastKey = nextKey;
+      else {
+        // the containment ignores the array positions, so it is only a prefilter
+        final FilterNode exactNode = arrayKey.rest.isEmpty()
+            ? super.nonSpecialKeyNode(key, rightHandSide)
+            : new FilterNode.SqlNode(
+                "coalesce(" + getJsonPathExpression(arrayKey.indexedPrefix) + " @> ?::jsonb, false)",
+                FilterParameter.json(buildPartsContainsValue(arrayKey.rest, rightHandSide)));
+        return new FilterNode.AndNode(Arrays.asList(containsNode, exactNode));
       }
+    }
 
-      requireNonNull(lastKey);
-      lastMap.put(lastKey, rightHandSide);
+    @Override
+    protected FilterNode specialKeyNode(final String key, final String rightHandSide) {
+      // this allows merging multiple equals in an "or" into one node
+      return new FilterNode.SpecialKeyInNode(key, Collections.singletonList(rightHandSide));
+    }
 
-      return result;
+  }
+
+  /**
+   * The prefix is translated to a range in the "C" collation, so the primary key index can be used
+   * for <code>id</code> and the {@link IndexService.IndexType#STRING} indexes for the other keys.
+   */
+  private static class PrefixOperator extends SimpleOperator {
+
+    public PrefixOperator() {
+      super("prefix", false, String.class);
     }
 
     @Override
-    protected void applyNonSpecialKey(final QueryBuilder queryBuilder, final String key, final Object rightHandSide) {
-      if (key.indexOf('[') >= 0) {
-        /**
-         * Array paths are currently not supported here, just use the default behavior.
-         */
-        super.applyNonSpecialKey(queryBuilder, key, rightHandSide);
-      }
-      else {
-        // we can use the jsonb_path_ops index to optimize this
-        addToQueryBuilder(queryBuilder, "data @> ?::jsonb", toJsonString(buildContainsValue(key, rightHandSide)));
-      }
+    protected FilterNode nonSpecialKeyNode(final String key, final Object rightHandSide) {
+      final String rangeExpression = getRangeExpression(key, "string");
+      // the type condition makes it null free
+      return new FilterNode.SqlNode(
+          getTypeCondition(key, "string") + " and " + rangeExpression + " >= (? collate \"C\") and " + rangeExpression
+              + " < (? collate \"C\")",
+          FilterParameter.value(rightHandSide), FilterParameter.prefixUpperBound(rightHandSide));
+    }
+
+    @Override
+    protected FilterNode specialKeyNode(final String key, final String rightHandSide) {
+      // the special keys are never null and use the "C" collation
+      return new FilterNode.SqlNode(key + " >= ? and " + key + " < ?", FilterParameter.value(rightHandSide),
+          FilterParameter.prefixUpperBound(rightHandSide));
+    }
+
+  }
+
+  /**
+   * <code>like</code> and <code>ilike</code> (with the postgres pattern syntax), for keys other
+   * than the special keys these can use the {@link IndexService.IndexType#TRIGRAM} indexes.
+   */
+  private static class LikeOperator extends SimpleOperator {
+
+    private final String operator;
+
+    public LikeOperator(final String operator) {
+      super(operator, false, String.class);
+      this.operator = operator;
+    }
+
+    @Override
+    protected FilterNode nonSpecialKeyNode(final String key, final Object rightHandSide) {
+      /**
+       * Without collation on the parameter, so that ilike uses the case folding of the default
+       * collation. The type condition makes it null free.
+       */
+      return new FilterNode.SqlNode(
+          getTypeCondition(key, "string") + " and " + getRangeExpression(key, "string") + " " + operator + " ?",
+          FilterParameter.value(rightHandSide));
     }
 
   }
@@ -228,17 +429,19 @@ public abstract class FilterOperator {
         new HashSet<>(Arrays.asList("object", "array", "string", "number", "boolean", "null", "undefined"));
 
     @Override
-    public void apply(final QueryBuilder queryBuilder, final String key, final Object rightHandSide) {
+    FilterNode toFilterNode(final String key, final Object rightHandSide) {
       if (!EXPECTED_TYPES.contains(rightHandSide)) {
         throw new ApiException("unexpected type for \"is\" operator: " + toJsonString(rightHandSide));
       }
 
       if (isSpecialKey(key)) {
         // both special keys are always string
-        queryBuilder.add(Boolean.valueOf("string".equals(rightHandSide)).toString());
+        return FilterNode.constant("string".equals(rightHandSide));
       }
       else {
-        queryBuilder.add("coalesce(jsonb_typeof(" + getJsonPathExpression(key) + "), 'undefined') = ?", rightHandSide);
+        // the type is part of the filter shape, so it is not a FilterParameter
+        return new FilterNode.SqlNode("coalesce(jsonb_typeof(" + getJsonPathExpression(key) + "), 'undefined') = ?",
+            rightHandSide);
       }
     }
 
@@ -246,21 +449,16 @@ public abstract class FilterOperator {
 
   private static class InOperator extends FilterOperator {
 
-    private boolean handleEmpty(final QueryBuilder queryBuilder, final List<?> arguments) {
-      if (arguments.isEmpty()) {
-        // if there are no arguments, then there is no match
-        queryBuilder.add("false");
-        return true;
-      }
-      return false;
-    }
-
     protected String generateParameters(final String singleParameter, final int size) {
       return IntStream.range(0, size).mapToObj(i -> singleParameter).collect(Collectors.joining(", "));
     }
 
+    private static boolean isScalar(final Object value) {
+      return !(value instanceof Map<?, ?>) && !(value instanceof List<?>);
+    }
+
     @Override
-    public void apply(final QueryBuilder queryBuilder, final String key, final Object rightHandSide) {
+    FilterNode toFilterNode(final String key, final Object rightHandSide) {
       if (!(rightHandSide instanceof List<?>)) {
         throw new ApiException("invalid right hand side for \"in\" operator: " + toJsonString(rightHandSide));
       }
@@ -270,25 +468,45 @@ public abstract class FilterOperator {
       }
 
       if (isSpecialKey(key)) {
-        final List<?> stringArguments =
-            arguments.stream().filter(argument -> argument instanceof String).collect(Collectors.toList());
-
-        if (handleEmpty(queryBuilder, stringArguments)) {
-          return;
+        // only strings can match, if there are none, then the node is simplified to false
+        return new FilterNode.SpecialKeyInNode(key, arguments.stream().filter(argument -> argument instanceof String)
+            .map(argument -> (String) argument).collect(Collectors.toList()));
+      }
+      else if (arguments.isEmpty()) {
+        // if there are no arguments, then there is no match
+        return FilterNode.FALSE;
+      }
+      else if (arguments.stream().allMatch(InOperator::isScalar)) {
+        /**
+         * For scalars containment is the same as equality, so we can use the jsonb_path_ops index
+         * (and this can also be merged with other equals).
+         */
+        final FilterNode containsAnyNode = new FilterNode.ContainsAnyNode(
+            arguments.stream().map(argument -> buildContainsValue(key, argument)).collect(Collectors.toList()));
+        final ArrayKey arrayKey = ArrayKey.of(key);
+        if (arrayKey.indexedPrefix == null) {
+          return containsAnyNode;
         }
-
-        queryBuilder.add(key + " in (" + generateParameters("?", stringArguments.size()) + ")", stringArguments);
+        // the containment ignores the array positions, so it is only a prefilter (see ArrayKey)
+        final FilterNode exactNode = arrayKey.rest.isEmpty() ? inNode(key, arguments)
+            : new FilterNode.SqlNode(
+                "coalesce(" + getJsonPathExpression(arrayKey.indexedPrefix) + " @> any(?::jsonb[]), false)",
+                FilterParameter.jsonArray(arguments.stream()
+                    .map(argument -> buildPartsContainsValue(arrayKey.rest, argument)).collect(Collectors.toList())));
+        return new FilterNode.AndNode(Arrays.asList(containsAnyNode, exactNode));
       }
       else {
-        if (handleEmpty(queryBuilder, arguments)) {
-          return;
-        }
-
-        queryBuilder.add(getJsonPathExpression(key) + " in (" + generateParameters("?::jsonb", arguments.size()) + ")",
-            arguments.stream().map(JsonUtil::toJsonString).collect(Collectors.toList()));
+        return inNode(key, arguments);
       }
     }
 
+    private FilterNode inNode(final String key, final List<?> arguments) {
+      return new FilterNode.SqlNode(
+          "coalesce(" + getJsonPathExpression(key) + " in (" + generateParameters("?::jsonb", arguments.size())
+              + "), false)",
+          arguments.stream().map(FilterParameter::json).collect(Collectors.toList()));
+    }
+
   }
 
 }
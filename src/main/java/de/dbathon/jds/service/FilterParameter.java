@@ -0,0 +1,146 @@
+package de.dbathon.jds.service;
+
+import static de.dbathon.jds.util.JsonUtil.toJsonString;
+import static java.util.Objects.requireNonNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+import de.dbathon.jds.util.JsonList;
+import de.dbathon.jds.util.JsonMap;
+
+/**
+ * A query parameter that is derived from the literal values of the filters (e.g. the json for a
+ * containment check). The {@link FilterNode}s add these to the {@link QueryBuilder} instead of the
+ * actual parameter values, so that the SQL of a {@link CompiledFilter} can be reused for filters
+ * with the same shape but different values: the parameters are just
+ * {@linkplain #resolve(UnaryOperator) resolved} with the new values.
+ */
+abstract class FilterParameter {
+
+  /**
+   * @param literalMapping
+   *          maps the literal values (strings and numbers) that were used to build the parameter
+   *          to the actual values
+   */
+  abstract Object resolve(UnaryOperator<Object> literalMapping);
+
+  /**
+   * Replaces all the scalar values in the given json using <code>literalMapping</code>.
+   */
+  static Object substitute(final Object json, final UnaryOperator<Object> literalMapping) {
+    if (json instanceof Map<?, ?>) {
+      final JsonMap result = new JsonMap();
+      for (final Map.Entry<?, ?> entry : ((Map<?, ?>) json).entrySet()) {
+        result.put((String) entry.getKey(), substitute(entry.getValue(), literalMapping));
+      }
+      return result;
+    }
+    else if (json instanceof List<?>) {
+      final JsonList result = new JsonList();
+      for (final Object element : (List<?>) json) {
+        result.add(substitute(element, literalMapping));
+      }
+      return result;
+    }
+    else {
+      return literalMapping.apply(json);
+    }
+  }
+
+  /**
+   * The value itself.
+   */
+  static FilterParameter value(final Object value) {
+    return new FilterParameter() {
+      @Override
+      Object resolve(final UnaryOperator<Object> literalMapping) {
+        return literalMapping.apply(value);
+      }
+    };
+  }
+
+  /**
+   * The given json as json string.
+   */
+  static FilterParameter json(final Object json) {
+    return new FilterParameter() {
+      @Override
+      Object resolve(final UnaryOperator<Object> literalMapping) {
+        return toJsonString(substitute(json, literalMapping));
+      }
+    };
+  }
+
+  /**
+   * A jsonpath, these have to be validated before the query is executed (see
+   * {@link CompiledFilter#getJsonPaths(List)}).
+   */
+  static final class JsonPathParameter extends FilterParameter {
+    private final Object jsonPath;
+
+    private JsonPathParameter(final Object jsonPath) {
+      this.jsonPath = requireNonNull(jsonPath);
+    }
+
+    @Override
+    Object resolve(final UnaryOperator<Object> literalMapping) {
+      final Object actualJsonPath = literalMapping.apply(jsonPath);
+      // this is only checked here (and not when the filter is compiled), the SQL must not depend on the value
+      if (!(actualJsonPath instanceof String) || ((String) actualJsonPath).trim().isEmpty()) {
+        throw new ApiException("invalid operand for jsonpath: " + toJsonString(actualJsonPath));
+      }
+      return actualJsonPath;
+    }
+  }
+
+  static FilterParameter jsonPath(final Object jsonPath) {
+    return new JsonPathParameter(jsonPath);
+  }
+
+  /**
+   * The upper bound for the given prefix (see {@link FilterOperator#getPrefixUpperBound(String)}).
+   */
+  static FilterParameter prefixUpperBound(final Object prefix) {
+    return new FilterParameter() {
+      @Override
+      Object resolve(final UnaryOperator<Object> literalMapping) {
+        final String actualPrefix = (String) literalMapping.apply(prefix);
+        final String result = FilterOperator.getPrefixUpperBound(actualPrefix);
+        if (result == null) {
+          // this is only checked here, the SQL must not depend on the value
+          throw new ApiException("invalid prefix: " + toJsonString(actualPrefix));
+        }
+        return result;
+      }
+    };
+  }
+
+  /**
+   * An array of the given jsons as json strings.
+   */
+  static FilterParameter jsonArray(final List<?> jsons) {
+    requireNonNull(jsons);
+    return new FilterParameter() {
+      @Override
+      Object resolve(final UnaryOperator<Object> literalMapping) {
+        return jsons.stream().map(json -> toJsonString(substitute(json, literalMapping))).toArray(String[]::new);
+      }
+    };
+  }
+
+  /**
+   * An array of the given strings.
+   */
+  static FilterParameter stringArray(final List<String> values) {
+    requireNonNull(values);
+    return new FilterParameter() {
+      @Override
+      Object resolve(final UnaryOperator<Object> literalMapping) {
+        return values.stream().map(value -> (String) literalMapping.apply(value)).toArray(String[]::new);
+      }
+    };
+  }
+
+}
@@ -0,0 +1,212 @@
+package de.dbathon.jds.service;
+
+import static de.dbathon.jds.util.JsonUtil.toJsonString;
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.dbathon.jds.util.JsonList;
+import de.dbathon.jds.util.JsonMap;
+import de.dbathon.jds.util.JsonStringNumber;
+
+/**
+ * The "shape" of some filters: a string that contains the complete structure of the filters (keys,
+ * operators, lengths of lists, the types of the values, ...) but with all string and number values
+ * (the literals) replaced by placeholders. The literals are collected in the order of their
+ * occurrence.
+ * <p>
+ * The SQL for the filters only depends on the shape (see {@link FilterNode}), so it can be cached
+ * using {@link #key} (see {@link CompiledFilter}).
+ * <p>
+ * Walking the filters for the shape is just one cheap pass without any regular expressions, it
+ * mirrors the structure that is expected by the translation to {@link FilterNode}s, because some
+ * strings are not literals (e.g. the group operators like "or" and the right hand side of the "is"
+ * operator).
+ */
+final class FilterShape {
+
+  final String key;
+  final List<Object> literals;
+
+  private FilterShape(final String key, final List<Object> literals) {
+    this.key = requireNonNull(key);
+    this.literals = Collections.unmodifiableList(literals);
+  }
+
+  private static class Walker {
+    final StringBuilder key = new StringBuilder();
+    final List<Object> literals = new ArrayList<>();
+    /**
+     * If not <code>null</code>, then the walk methods return copies with new literal objects, that
+     * are registered in this map.
+     */
+    final IdentityHashMap<Object, Integer> placeholderIndexes;
+
+    Walker(final IdentityHashMap<Object, Integer> placeholderIndexes) {
+      this.placeholderIndexes = placeholderIndexes;
+    }
+
+    private boolean isCopy() {
+      return placeholderIndexes != null;
+    }
+
+    private void appendVerbatim(final Object value) {
+      key.append(value instanceof String ? toJsonString(value) : String.valueOf(value));
+    }
+
+    private Object literal(final char type, final Object value, final Object placeholder) {
+      key.append(type);
+      if (isCopy()) {
+        placeholderIndexes.put(placeholder, literals.size());
+      }
+      literals.add(value);
+      return placeholder;
+    }
+
+    Object walkFilters(final Object filters) {
+      if (filters instanceof Map<?, ?>) {
+        final JsonMap copy = isCopy() ? new JsonMap() : null;
+        key.append('{');
+        for (final Map.Entry<?, ?> entry : ((Map<?, ?>) filters).entrySet()) {
+          final String filterKey = String.valueOf(entry.getKey());
+          final Object value = entry.getValue();
+          appendVerbatim(filterKey);
+          key.append(':');
+          final Object valueCopy;
+          if (value instanceof Map<?, ?>) {
+            final JsonMap operatorsCopy = isCopy() ? new JsonMap() : null;
+            key.append('{');
+            for (final Map.Entry<?, ?> operatorEntry : ((Map<?, ?>) value).entrySet()) {
+              final String operator = String.valueOf(operatorEntry.getKey());
+              appendVerbatim(operator);
+              key.append(':');
+              final Object rightHandSideCopy;
+              if ("is".equals(operator)) {
+                // the type is not a literal, the SQL depends on it
+                appendVerbatim(operatorEntry.getValue());
+                rightHandSideCopy = operatorEntry.getValue();
+              }
+              else {
+                rightHandSideCopy = walkValue(operatorEntry.getValue());
+              }
+              key.append(',');
+              if (isCopy()) {
+                operatorsCopy.put(operator, rightHandSideCopy);
+              }
+            }
+            key.append('}');
+            valueCopy = operatorsCopy;
+          }
+          else {
+            valueCopy = walkValue(value);
+          }
+          key.append(',');
+          if (isCopy()) {
+            copy.put(filterKey, valueCopy);
+          }
+        }
+        key.append('}');
+        return copy;
+      }
+      else if (filters instanceof Iterable<?>) {
+        final JsonList copy = isCopy() ? new JsonList() : null;
+        key.append('[');
+        boolean first = true;
+        // the entries of these groups are values, not filters
+        boolean valueEntries = false;
+        for (final Object entry : (Iterable<?>) filters) {
+          final Object entryCopy;
+          if (first && entry instanceof String) {
+            // the operator of the group
+            appendVerbatim(entry);
+            valueEntries = DocumentService.VALUE_GROUP_OPERATORS.contains(entry);
+            entryCopy = entry;
+          }
+          else {
+            entryCopy = valueEntries ? walkValue(entry) : walkFilters(entry);
+          }
+          first = false;
+          key.append(',');
+          if (isCopy()) {
+            copy.add(entryCopy);
+          }
+        }
+        key.append(']');
+        return copy;
+      }
+      else {
+        // null or invalid
+        appendVerbatim(filters);
+        return filters;
+      }
+    }
+
+    Object walkValue(final Object value) {
+      if (value instanceof String) {
+        return literal('s', value, isCopy() ? new String((String) value) : null);
+      }
+      else if (value instanceof JsonStringNumber) {
+        return literal('n', value, isCopy() ? new JsonStringNumber(value.toString()) : null);
+      }
+      else if (value instanceof Map<?, ?>) {
+        final JsonMap copy = isCopy() ? new JsonMap() : null;
+        key.append('{');
+        for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+          final String entryKey = String.valueOf(entry.getKey());
+          appendVerbatim(entryKey);
+          key.append(':');
+          final Object entryCopy = walkValue(entry.getValue());
+          key.append(',');
+          if (isCopy()) {
+            copy.put(entryKey, entryCopy);
+          }
+        }
+        key.append('}');
+        return copy;
+      }
+      else if (value instanceof List<?>) {
+        final JsonList copy = isCopy() ? new JsonList() : null;
+        key.append('[');
+        for (final Object element : (List<?>) value) {
+          final Object elementCopy = walkValue(element);
+          key.append(',');
+          if (isCopy()) {
+            copy.add(elementCopy);
+          }
+        }
+        key.append(']');
+        return copy;
+      }
+      else {
+        // null, booleans etc. are part of the shape
+        appendVerbatim(value);
+        return value;
+      }
+    }
+  }
+
+  static FilterShape of(final Object filters) {
+    final Walker walker = new Walker(null);
+    walker.walkFilters(filters);
+    return new FilterShape(walker.key.toString(), walker.literals);
+  }
+
+  /**
+   * Creates a copy of the given filters, in which all literals are replaced by new objects (with
+   * the same values), the indexes of these new objects (in {@link #literals}) are added to
+   * <code>placeholderIndexes</code>. So the objects can be identified in the {@link FilterParameter}s
+   * even if the same value occurs multiple times.
+   *
+   * @param filters
+   *          must be the filters that this shape was created for
+   */
+  static Object createPlaceholderFilters(final Object filters,
+      final IdentityHashMap<Object, Integer> placeholderIndexes) {
+    return new Walker(requireNonNull(placeholderIndexes)).walkFilters(filters);
+  }
+
+}
@@ -0,0 +1,197 @@
+package de.dbathon.jds.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.transaction.Transactional;
+import javax.transaction.Transactional.TxType;
+import javax.ws.rs.core.Response.Status;
+
+import de.dbathon.jds.persistence.DatabaseConnection;
+import de.dbathon.jds.persistence.RuntimeSqlException;
+import de.dbathon.jds.util.JsonMap;
+
+/**
+ * Manages expression indexes for frequently filtered paths, so that range filters (like
+ * <code>&lt;</code>, <code>&gt;=</code> or <code>prefix</code>) don't need sequential scans.
+ * <p>
+ * The indexes are declared per database (in <code>jds_index</code>), but the postgres index is
+ * shared by all databases that declare the same path and type: it is a partial btree index on
+ * <code>(database_id, expression)</code>, where the expression and the predicate are exactly the
+ * ones the filters use (see {@link FilterOperator#getRangeExpression(String, String)}).
+ * <p>
+ * The {@link IndexType#TRIGRAM} indexes for <code>like</code> and <code>ilike</code> are GIN
+ * indexes of the <code>pg_trgm</code> extension on just the expression (the database id is
+ * checked separately).
+ */
+@ApplicationScoped
+@Transactional
+public class IndexService {
+
+  private static final String INDEX_NAME_PREFIX = "jds_idx_";
+
+  private static final Pattern INDEX_NAME_PATTERN = Pattern.compile(INDEX_NAME_PREFIX + "[a-z]+_[0-9a-f]+");
+
+  private static final Class<?>[] STRING_STRING_BOOLEAN_TYPES =
+      new Class<?>[] { String.class, String.class, Boolean.class };
+
+  public enum IndexType {
+    STRING("string", "string"),
+    NUMBER("number", "number"),
+    TRIGRAM("trigram", "string");
+
+    /**
+     * The name in the API.
+     */
+    public final String typeName;
+    /**
+     * The json type of the indexed values.
+     */
+    public final String jsonType;
+
+    IndexType(final String typeName, final String jsonType) {
+      this.typeName = typeName;
+      this.jsonType = jsonType;
+    }
+
+    public static IndexType fromTypeName(final String typeName) {
+      for (final IndexType type : values()) {
+        if (type.typeName.equals(typeName)) {
+          return type;
+        }
+      }
+      throw new ApiException("invalid index type: " + typeName);
+    }
+  }
+
+  @Inject
+  DatabaseConnection databaseConnection;
+
+  @Inject
+  DatabaseCache databaseCache;
+
+  private static String validatePath(final String path) {
+    if (path == null || !FilterOperator.isValidKey(path) || FilterOperator.isSpecialKey(path)) {
+      throw new ApiException("invalid index path: " + path);
+    }
+    return path;
+  }
+
+  static String getIndexName(final String path, final IndexType type) {
+    try {
+      final byte[] digest = MessageDigest.getInstance("SHA-256").digest(path.getBytes(StandardCharsets.UTF_8));
+      final StringBuilder result = new StringBuilder(INDEX_NAME_PREFIX).append(type.typeName).append("_");
+      // 10 bytes are more than enough to avoid collisions and keep the name short
+      for (int i = 0; i < 10; ++i) {
+        result.append(String.format("%02x", digest[i]));
+      }
+      return result.toString();
+    }
+    catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String getIndexDefinition(final String path, final IndexType type) {
+    final String expression = FilterOperator.getRangeExpression(path, type.jsonType);
+    final String predicate = " where deleted_at is null and " + FilterOperator.getTypeCondition(path, type.jsonType);
+    if (type == IndexType.TRIGRAM) {
+      return "on jds_document using gin (" + expression + " gin_trgm_ops)" + predicate;
+    }
+    return "on jds_document (database_id, " + expression + (type == IndexType.STRING ? " collate \"C\"" : "") + ")"
+        + predicate;
+  }
+
+  private JsonMap indexJson(final String path, final String typeName, final boolean ready) {
+    return new JsonMap().add("path", path).add("type", typeName).add("ready", ready);
+  }
+
+  public List<JsonMap> getIndexes(final String databaseName) {
+    final Integer databaseId = databaseCache.getDatabaseId(databaseName);
+    final List<JsonMap> result = new ArrayList<>();
+    for (final Object[] row : databaseConnection.query("select i.path, i.type, coalesce(x.indisvalid, false) "
+        + "from jds_index i left join pg_index x on x.indexrelid = to_regclass(i.index_name) "
+        + "where i.database_id = ? order by i.path, i.type", Object[].class, STRING_STRING_BOOLEAN_TYPES,
+        databaseId)) {
+      result.add(indexJson((String) row[0], (String) row[1], (Boolean) row[2]));
+    }
+    return result;
+  }
+
+  /**
+   * Declares the index for the given database, the postgres index needs to be built separately
+   * using {@link #buildIndex(String, IndexType)}.
+   *
+   * @return whether the index was not declared before
+   */
+  public boolean declareIndex(final String databaseName, final String path, final IndexType type) {
+    validatePath(path);
+    final Integer databaseId = databaseCache.getDatabaseId(databaseName);
+    return databaseConnection.executeUpdate("insert into jds_index (database_id, path, type, index_name) "
+        + "values (?, ?, ?, ?) on conflict do nothing", databaseId, path, type.typeName,
+        getIndexName(path, type)) == 1;
+  }
+
+  /**
+   * Creates the postgres index (if it does not exist yet) using <code>create index
+   * concurrently</code>, so the writers are not blocked. This can take a long time for big tables.
+   */
+  @Transactional(TxType.NOT_SUPPORTED)
+  public void buildIndex(final String path, final IndexType type) {
+    validatePath(path);
+    final String indexName = getIndexName(path, type);
+    try {
+      databaseConnection.executeUpdate(
+          "create index concurrently if not exists " + indexName + " " + getIndexDefinition(path, type));
+    }
+    catch (final RuntimeSqlException e) {
+      // a failed concurrent build leaves an invalid index behind, that would prevent future attempts
+      databaseConnection.executeUpdate("drop index concurrently if exists " + indexName);
+      throw e;
+    }
+  }
+
+  public JsonMap getIndex(final String databaseName, final String path, final IndexType type) {
+    for (final JsonMap index : getIndexes(databaseName)) {
+      if (path.equals(index.get("path")) && type.typeName.equals(index.get("type"))) {
+        return index;
+      }
+    }
+    throw new ApiException("index not found", Status.NOT_FOUND);
+  }
+
+  /**
+   * Removes the declaration of the index for the given database, the postgres index is dropped by
+   * {@link #dropUnreferencedIndexes()} if it is not used by other databases.
+   */
+  public void removeIndex(final String databaseName, final String path, final IndexType type) {
+    final Integer databaseId = databaseCache.getDatabaseId(databaseName);
+    if (databaseConnection.executeUpdate("delete from jds_index where database_id = ? and path = ? and type = ?",
+        databaseId, validatePath(path), type.typeName) != 1) {
+      throw new ApiException("index not found", Status.NOT_FOUND);
+    }
+  }
+
+  /**
+   * Drops the postgres indexes that are not declared by any database anymore (using <code>drop
+   * index concurrently</code>).
+   */
+  @Transactional(TxType.NOT_SUPPORTED)
+  public void dropUnreferencedIndexes() {
+    for (final String indexName : databaseConnection.query("select indexname from pg_indexes "
+        + "where tablename = 'jds_document' and indexname like ? "
+        + "and indexname not in (select index_name from jds_index)", String.class, INDEX_NAME_PREFIX + "%")) {
+      // only drop indexes with the expected names
+      if (INDEX_NAME_PATTERN.matcher(indexName).matches()) {
+        databaseConnection.executeUpdate("drop index concurrently if exists " + indexName);
+      }
+    }
+  }
+
+}
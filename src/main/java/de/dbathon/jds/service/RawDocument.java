@@ -0,0 +1,158 @@
+package de.dbathon.jds.service;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import de.dbathon.jds.util.JsonMap;
+import de.dbathon.jds.util.JsonUtil;
+
+/**
+ * A document as it is stored in the database: id, version and the data json string (the data does
+ * not contain id and version).
+ * <p>
+ * {@link #writeTo(Writer)} writes the document json without parsing the data, the data json string
+ * is just spliced into the output.
+ * <p>
+ * Alternatively a {@link RawDocument} can also be created from the already serialized document
+ * json, see {@link #fromJsonBytes(String, String, byte[])}.
+ */
+public class RawDocument {
+
+  public final String id;
+  public final String version;
+  /**
+   * The json of the document (without id and version), this is always a json object. Is
+   * <code>null</code> if {@link #jsonBytes} was given instead.
+   */
+  private final String dataJson;
+
+  /**
+   * The complete document json (including id and version) in UTF-8, lazily initialized if
+   * {@link #dataJson} is given.
+   */
+  private byte[] jsonBytes;
+
+  public RawDocument(final String id, final String version, final String dataJson) {
+    this.id = requireNonNull(id);
+    this.version = requireNonNull(version);
+    this.dataJson = requireNonNull(dataJson);
+  }
+
+  private RawDocument(final String id, final String version, final byte[] jsonBytes) {
+    this.id = requireNonNull(id);
+    this.version = requireNonNull(version);
+    this.dataJson = null;
+    this.jsonBytes = requireNonNull(jsonBytes);
+  }
+
+  /**
+   * @param jsonBytes
+   *          the complete document json (including id and version) in UTF-8, e.g. from
+   *          {@link #getJsonBytes()}, the array must not be modified
+   */
+  public static RawDocument fromJsonBytes(final String id, final String version, final byte[] jsonBytes) {
+    return new RawDocument(id, version, jsonBytes);
+  }
+
+  private int getDataStartIndex() {
+    // the json is generated by postgres, so we don't expect leading whitespace
+    if (dataJson.isEmpty() || dataJson.charAt(0) != '{') {
+      throw new IllegalStateException("data is not a json object: " + dataJson);
+    }
+    return 1;
+  }
+
+  private boolean isDataEmpty(final int startIndex) {
+    for (int i = startIndex; i < dataJson.length(); ++i) {
+      if (!Character.isWhitespace(dataJson.charAt(i))) {
+        return dataJson.charAt(i) == '}';
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Writes the document json (including id and version) to the given {@link Writer}.
+   */
+  public void writeTo(final Writer writer) throws IOException {
+    if (dataJson == null) {
+      writer.write(new String(jsonBytes, StandardCharsets.UTF_8));
+      return;
+    }
+
+    writer.write("{");
+    JsonUtil.writeJsonString(writer, DocumentService.ID_PROPERTY);
+    writer.write(":");
+    JsonUtil.writeJsonString(writer, id);
+    writer.write(",");
+    JsonUtil.writeJsonString(writer, DocumentService.VERSION_PROPERTY);
+    writer.write(":");
+    JsonUtil.writeJsonString(writer, version);
+
+    final int startIndex = getDataStartIndex();
+    if (isDataEmpty(startIndex)) {
+      writer.write("}");
+    }
+    else {
+      writer.write(",");
+      // the rest of the data including the closing brace
+      writer.write(dataJson, startIndex, dataJson.length() - startIndex);
+    }
+  }
+
+  /**
+   * Writes the document json (including id and version) in UTF-8 to the given
+   * {@link OutputStream}.
+   */
+  public void writeTo(final OutputStream outputStream) throws IOException {
+    if (jsonBytes != null) {
+      outputStream.write(jsonBytes);
+    }
+    else {
+      final Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+      writeTo(writer);
+      writer.flush();
+    }
+  }
+
+  /**
+   * @return the complete document json (including id and version) in UTF-8, the returned array
+   *         must not be modified
+   */
+  public byte[] getJsonBytes() {
+    byte[] result = jsonBytes;
+    if (result == null) {
+      final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(dataJson.length() + 50);
+      try {
+        writeTo(outputStream);
+      }
+      catch (final IOException e) {
+        // should not happen
+        throw new UncheckedIOException(e);
+      }
+      result = jsonBytes = outputStream.toByteArray();
+    }
+    return result;
+  }
+
+  /**
+   * Parses the data and returns the full document (including id and version) as {@link JsonMap}.
+   */
+  public JsonMap toJsonMap() {
+    if (dataJson == null) {
+      return JsonUtil.readObjectFromJsonBytes(jsonBytes);
+    }
+    final JsonMap result = new JsonMap().add(DocumentService.ID_PROPERTY, id)
+        .add(DocumentService.VERSION_PROPERTY, version);
+    result.putAll((JsonMap) JsonUtil.readJsonString(dataJson));
+    return result;
+  }
+
+}
@@ -0,0 +1,43 @@
+package de.dbathon.jds.service;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.quarkus.scheduler.Scheduled;
+
+/**
+ * Periodically merges the statistics deltas, that are written by the writers with
+ * {@link DatabaseService.WriteConcurrency#DOCUMENT_LOCK}, into the database rows (see
+ * {@link DatabaseService#addStatistics(DatabaseService.DatabaseInfo, long, long)}), so that the
+ * number of deltas that need to be summed when reading the statistics stays small.
+ * <p>
+ * Each database is merged in its own transaction, so the database rows are only locked briefly.
+ */
+@ApplicationScoped
+public class StatisticsMerger {
+
+  private static final Logger log = LoggerFactory.getLogger(StatisticsMerger.class);
+
+  @Inject
+  DatabaseService databaseService;
+
+  @Scheduled(every = "{jds.statistics.merge-interval}")
+  void merge() {
+    try {
+      long merged = 0;
+      for (final Integer databaseId : databaseService.getDatabaseIdsWithStatisticsDeltas()) {
+        merged += databaseService.mergeStatisticsDeltas(databaseId);
+      }
+      if (merged > 0) {
+        log.debug("merged {} statistics deltas", merged);
+      }
+    }
+    catch (final RuntimeException e) {
+      log.warn("merging statistics deltas failed", e);
+    }
+  }
+
+}
@@ -0,0 +1,55 @@
+package de.dbathon.jds.service;
+
+import java.time.Duration;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.quarkus.scheduler.Scheduled;
+
+/**
+ * Periodically purges the tombstones of deleted documents that are older than
+ * <code>jds.tombstones.retention</code>.
+ * <p>
+ * The tombstones are purged in small batches (each in its own transaction), so that the writers are
+ * never blocked for long.
+ */
+@ApplicationScoped
+public class TombstoneCompactor {
+
+  private static final Logger log = LoggerFactory.getLogger(TombstoneCompactor.class);
+
+  private static final int BATCH_SIZE = 1000;
+
+  @ConfigProperty(name = "jds.tombstones.retention", defaultValue = "P30D")
+  Duration retention;
+
+  @Inject
+  DocumentService documentService;
+
+  @Scheduled(every = "{jds.tombstones.compaction-interval}")
+  void compact() {
+    try {
+      long purged = 0;
+      for (final Integer databaseId : documentService.getDatabaseIdsWithExpiredTombstones(retention)) {
+        int batchPurged;
+        do {
+          batchPurged = documentService.purgeExpiredTombstones(databaseId, retention, BATCH_SIZE);
+          purged += batchPurged;
+        }
+        while (batchPurged == BATCH_SIZE);
+      }
+      if (purged > 0) {
+        log.info("purged {} tombstones", purged);
+      }
+    }
+    catch (final RuntimeException e) {
+      log.warn("purging tombstones failed", e);
+    }
+  }
+
+}
@@ -1,8 +1,10 @@
 package de.dbathon.jds.util;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.Collections;
@@ -21,6 +23,9 @@ public class JsonUtil {
 
   public static final JsonProvider PROVIDER = JsonProvider.provider();
 
+  public static final JsonGeneratorFactory GENERATOR_FACTORY =
+      PROVIDER.createGeneratorFactory(Collections.emptyMap());
+
   public static final JsonGeneratorFactory PRETTY_GENERATOR_FACTORY =
       PROVIDER.createGeneratorFactory(Collections.singletonMap(JsonGenerator.PRETTY_PRINTING, true));
 
@@ -28,8 +33,11 @@ public class JsonUtil {
    * Unfortunately the default pretty {@link JsonGenerator} implementation inserts extra newlines if
    * {@link JsonGenerator#writeKey(String)} is used, so to avoid that we have to use both variants
    * of all the write methods and lots of if/else...
+   * <p>
+   * If <code>outerKey</code> is not <code>null</code>, then the value is written as property of the
+   * current object.
    */
-  private static void writeToGenerator(final Object value, final String outerKey, final JsonGenerator generator) {
+  public static void writeToGenerator(final Object value, final String outerKey, final JsonGenerator generator) {
     if (value == null) {
       if (outerKey == null) {
         generator.writeNull();
@@ -165,7 +173,7 @@ public class JsonUtil {
   private static String toJsonString(final Object value, final boolean pretty) {
     final StringWriter writer = new StringWriter();
     try (final JsonGenerator generator =
-        pretty ? PRETTY_GENERATOR_FACTORY.createGenerator(writer) : PROVIDER.createGenerator(writer)) {
+        pretty ? PRETTY_GENERATOR_FACTORY.createGenerator(writer) : GENERATOR_FACTORY.createGenerator(writer)) {
       writeToGenerator(value, generator);
     }
     return writer.toString();
@@ -179,11 +187,87 @@ public class JsonUtil {
     return toJsonString(value, true);
   }
 
-  private static Object readFromParser(final JsonParser parser, final Event currentEvent) {
+  /**
+   * Writes the given <code>string</code> as json string (with quotes and escaping) to the given
+   * {@link Writer}. This is useful if json is written "manually" without a {@link JsonGenerator}.
+   */
+  public static void writeJsonString(final Writer writer, final String string) throws IOException {
+    writer.write('"');
+    int start = 0;
+    final int length = string.length();
+    for (int i = 0; i < length; ++i) {
+      final char c = string.charAt(i);
+      if (c == '"' || c == '\\' || c < 0x20) {
+        writer.write(string, start, i - start);
+        switch (c) {
+        case '"':
+          writer.write("\\\"");
+          break;
+        case '\\':
+          writer.write("\\\\");
+          break;
+        case '\n':
+          writer.write("\\n");
+          break;
+        case '\r':
+          writer.write("\\r");
+          break;
+        case '\t':
+          writer.write("\\t");
+          break;
+        default:
+          writer.write(String.format("\\u%04x", (int) c));
+        }
+        start = i + 1;
+      }
+    }
+    writer.write(string, start, length - start);
+    writer.write('"');
+  }
+
+  /**
+   * Limits for {@link JsonUtil#readFromParser(JsonParser, Limits)}, to protect against very deeply
+   * nested input.
+   */
+  public static class Limits {
+    public static final Limits NONE = new Limits(Integer.MAX_VALUE);
+
+    /**
+     * The maximum nesting depth of objects and arrays (the root is depth 1).
+     */
+    public final int maxDepth;
+
+    public Limits(final int maxDepth) {
+      this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Creates the exception that is thrown if {@link #maxDepth} is exceeded, subclasses can override
+     * this to report the violation differently.
+     */
+    public RuntimeException createMaxDepthExceededException(final JsonParser parser) {
+      return new JsonParsingException("maximum depth exceeded: " + maxDepth, parser.getLocation());
+    }
+  }
+
+  /**
+   * Like {@link #readFromParser(JsonParser, Limits)}, but for reading an element in the middle of
+   * the input, e.g. the elements of an array while processing the other events directly.
+   *
+   * @param currentEvent
+   *          the already consumed event of the element or <code>null</code> to read the next event
+   * @param depth
+   *          the depth of the element (0 for the root, 1 for the values of the root object etc.)
+   */
+  public static Object readFromParser(final JsonParser parser, final Event currentEvent, final Limits limits,
+      final int depth) {
     if (currentEvent == null && !parser.hasNext()) {
       throw new JsonParsingException("unexpected end of input", parser.getLocation());
     }
     Event event = currentEvent != null ? currentEvent : parser.next();
+    if ((event == Event.START_OBJECT || event == Event.START_ARRAY) && depth >= limits.maxDepth) {
+      throw limits.createMaxDepthExceededException(parser);
+    }
     switch (event) {
     case START_OBJECT:
       final JsonMap map = new JsonMap();
@@ -192,13 +276,13 @@ public class JsonUtil {
           throw new JsonParsingException("unexpected event, expected KEY_NAME: " + event, parser.getLocation());
         }
         final String key = parser.getString();
-        map.put(key, readFromParser(parser, null));
+        map.put(key, readFromParser(parser, null, limits, depth + 1));
       }
       return map;
     case START_ARRAY:
       final JsonList list = new JsonList();
       while ((event = parser.next()) != Event.END_ARRAY) {
-        list.add(readFromParser(parser, event));
+        list.add(readFromParser(parser, event, limits, depth + 1));
       }
       return list;
     case VALUE_STRING:
@@ -225,7 +309,15 @@ public class JsonUtil {
    * {@link Boolean} and <code>null</code>.
    */
   public static Object readFromParser(final JsonParser parser) {
-    return readFromParser(parser, null);
+    return readFromParser(parser, null, Limits.NONE, 0);
+  }
+
+  /**
+   * Like {@link #readFromParser(JsonParser)}, but an exception is thrown if the given {@link Limits}
+   * are exceeded (before the rest of the input is read).
+   */
+  public static Object readFromParser(final JsonParser parser, final Limits limits) {
+    return readFromParser(parser, null, limits, 0);
   }
 
   public static Object readJsonString(final String json) {
@@ -0,0 +1,74 @@
+package de.dbathon.jds.rest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+import javax.ws.rs.core.Response.Status;
+
+import org.junit.jupiter.api.Test;
+
+import de.dbathon.jds.service.ApiException;
+import de.dbathon.jds.util.JsonUtil;
+import io.quarkus.runtime.configuration.MemorySize;
+
+public class JsonRequestLimitsTest {
+
+  private InputStream stream(final String string) {
+    return new ByteArrayInputStream(string.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private JsonRequestLimits limits(final long maxBodySize) {
+    final JsonRequestLimits result = new JsonRequestLimits();
+    result.maxBodySize = new MemorySize(BigInteger.valueOf(maxBodySize));
+    result.maxDepth = 100;
+    result.maxDocuments = 10;
+    return result;
+  }
+
+  @Test
+  void testLimitedInputStream() throws IOException {
+    final InputStream in = new JsonRequestLimits.LimitedInputStream(stream("abcdef"), 5);
+    assertEquals('a', in.read());
+    assertEquals(4, in.read(new byte[4], 0, 4));
+    assertThrows(ApiException.class, () -> in.read());
+
+    final InputStream exact = new JsonRequestLimits.LimitedInputStream(stream("abc"), 3);
+    assertEquals(3, exact.read(new byte[10], 0, 10));
+    assertEquals(-1, exact.read());
+  }
+
+  @Test
+  void testCreateParser() {
+    final JsonRequestLimits limits = limits(10);
+    assertEquals("{\"a\":1}",
+        JsonUtil.toJsonString(JsonUtil.readFromParser(limits.createParser(stream("{\"a\": 1}"), "8"))));
+
+    final ApiException tooLarge =
+        assertThrows(ApiException.class, () -> limits.createParser(stream("{\"a\": 1}"), "11"));
+    assertEquals(Status.REQUEST_ENTITY_TOO_LARGE, tooLarge.getStatus());
+    // without or with a wrong content length it fails while reading
+    assertThrows(ApiException.class,
+        () -> JsonUtil.readFromParser(limits.createParser(stream("{\"a\": \"abcdefgh\"}"), null)));
+    assertThrows(ApiException.class,
+        () -> JsonUtil.readFromParser(limits.createParser(stream("{\"a\": \"abcdefgh\"}"), "5")));
+  }
+
+  @Test
+  void testMaxDepth() {
+    final JsonRequestLimits limits = limits(1000);
+    limits.maxDepth = 2;
+    assertEquals("{\"a\":[1]}",
+        JsonUtil.toJsonString(JsonUtil.readFromParser(limits.createParser(stream("{\"a\": [1]}"), null),
+            limits.getLimits())));
+    final ApiException tooDeep = assertThrows(ApiException.class, () -> JsonUtil
+        .readFromParser(limits.createParser(stream("{\"a\": [{}]}"), null), limits.getLimits()));
+    assertEquals(Status.REQUEST_ENTITY_TOO_LARGE, tooDeep.getStatus());
+  }
+
+}
@@ -0,0 +1,89 @@
+package de.dbathon.jds.rest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.json.stream.JsonParsingException;
+import javax.ws.rs.core.Response.Status;
+
+import org.junit.jupiter.api.Test;
+
+import de.dbathon.jds.service.ApiException;
+import de.dbathon.jds.service.DocumentService.Operation;
+import de.dbathon.jds.util.JsonUtil;
+
+public class MultiOperationsIteratorTest {
+
+  private MultiOperationsIterator iterator(final String json, final int maxDocuments) {
+    return new MultiOperationsIterator(JsonUtil.PROVIDER.createParser(new StringReader(json)),
+        new JsonUtil.Limits(10), maxDocuments);
+  }
+
+  private List<String> read(final String json) {
+    final List<String> result = new ArrayList<>();
+    iterator(json, 10).forEachRemaining(operation -> result.add(toString(operation)));
+    return result;
+  }
+
+  private String toString(final Operation operation) {
+    return operation.type + " " + operation.documentId + " "
+        + (operation.json != null ? JsonUtil.toJsonString(operation.json) : operation.versionForDelete);
+  }
+
+  @Test
+  void testOperations() {
+    assertEquals(
+        Arrays.asList("CREATE a {\"id\":\"a\",\"x\":[1]}", "UPDATE b {\"id\":\"b\",\"version\":\"11\"}",
+            "DELETE c 12", "DELETE d null"),
+        read("{\"put\": [{\"id\": \"a\", \"x\": [1]}, {\"id\": \"b\", \"version\": \"11\"}], "
+            + "\"delete\": [{\"id\": \"c\", \"version\": \"12\"}, {\"id\": \"d\"}]}"));
+    // in the order of the request, other properties and null lists are ignored
+    assertEquals(Arrays.asList("DELETE c null", "CREATE a {\"id\":\"a\"}"),
+        read("{\"x\": {\"y\": [1, {}]}, \"delete\": [{\"id\": \"c\"}], \"put\": [{\"id\": \"a\"}], \"z\": null}"));
+    assertEquals(Arrays.asList("CREATE a {\"id\":\"a\"}"), read("{\"put\": [{\"id\": \"a\"}], \"delete\": null}"));
+  }
+
+  @Test
+  void testInvalid() {
+    assertThrows(ApiException.class, () -> read("{}"));
+    assertThrows(ApiException.class, () -> read("{\"put\": null, \"delete\": []}"));
+    assertThrows(ApiException.class, () -> read("{\"put\": {}}"));
+    assertThrows(ApiException.class, () -> read("{\"put\": [1]}"));
+    assertThrows(ApiException.class, () -> read("{\"put\": [{\"id\": 1}]}"));
+    assertThrows(ApiException.class, () -> read("{\"put\": [{\"id\": \"a\", \"version\": 1}]}"));
+    assertThrows(JsonParsingException.class, () -> read("[]"));
+    assertThrows(JsonParsingException.class, () -> read("{\"put\": [{\"id\": \"a\"}]} {}"));
+    assertThrows(JsonParsingException.class, () -> read("{\"put\": [{\"id\": \"a\"}]"));
+  }
+
+  @Test
+  void testDuplicateIds() {
+    final ApiException e = assertThrows(ApiException.class,
+        () -> read("{\"put\": [{\"id\": \"a\"}, {\"id\": \"b\"}], \"delete\": [{\"id\": \"a\"}]}"));
+    assertEquals("a", e.getDocumentId());
+    assertThrows(ApiException.class, () -> read("{\"put\": [{\"id\": \"a\"}, {\"id\": \"a\"}]}"));
+  }
+
+  @Test
+  void testMaxDocuments() {
+    final String json = "{\"put\": [{\"id\": \"a\"}, {\"id\": \"b\"}], \"delete\": [{\"id\": \"c\"}, {\"id\": \"d\"}]}";
+    assertEquals(4, read(json).size());
+
+    // the limit is per list and the operations before are returned
+    final MultiOperationsIterator iterator = iterator(json, 1);
+    assertEquals("CREATE a {\"id\":\"a\"}", toString(iterator.next()));
+    final ApiException e = assertThrows(ApiException.class, iterator::hasNext);
+    assertEquals(Status.REQUEST_ENTITY_TOO_LARGE, e.getStatus());
+
+    final MultiOperationsIterator single = iterator("{\"put\": [{\"id\": \"a\"}]}", 1);
+    single.next();
+    assertFalse(single.hasNext());
+  }
+
+}
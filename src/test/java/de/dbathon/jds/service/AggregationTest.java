@@ -0,0 +1,55 @@
+package de.dbathon.jds.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+import de.dbathon.jds.util.JsonUtil;
+
+public class AggregationTest {
+
+  private Aggregation parse(final String groupBy, final String aggregates) {
+    return Aggregation.parse(groupBy != null ? Arrays.asList(groupBy.split(",")) : null,
+        JsonUtil.readJsonString(aggregates));
+  }
+
+  @Test
+  void testWithoutGroups() {
+    final Aggregation aggregation = parse(null, "{\"n\": {\"count\": null}, \"total\": {\"sum\": \"a.b\"}}");
+    assertEquals(2, aggregation.getColumnCount());
+    assertEquals("count(*)::text, sum((data->'a'->'b')::numeric) filter (where "
+        + "coalesce(jsonb_typeof(data->'a'->'b'), 'undefined') = 'number')::text", aggregation.getSelectList());
+    assertNull(aggregation.getGroupByAndOrderBy());
+    assertEquals("{\"aggregates\":{\"n\":3,\"total\":null}}",
+        JsonUtil.toJsonString(aggregation.toJson(new Object[] { "3", null })));
+  }
+
+  @Test
+  void testGroups() {
+    final Aggregation aggregation = parse("a,b", "{\"n\": {\"count\": \"c\"}}");
+    assertEquals("(data->'a')::text, (data->'b')::text, count(*) filter (where data->'c' is not null)::text",
+        aggregation.getSelectList());
+    assertEquals("group by data->'a', data->'b' order by data->'a', data->'b'", aggregation.getGroupByAndOrderBy());
+    assertEquals("{\"group\":{\"a\":\"x\",\"b\":null},\"aggregates\":{\"n\":2}}",
+        JsonUtil.toJsonString(aggregation.toJson(new Object[] { "\"x\"", null, "2" })));
+  }
+
+  @Test
+  void testInvalid() {
+    assertThrows(ApiException.class, () -> parse(null, "{}"));
+    assertThrows(ApiException.class, () -> parse(null, "[]"));
+    assertThrows(ApiException.class, () -> parse(null, "{\"x\": {\"median\": \"a\"}}"));
+    assertThrows(ApiException.class, () -> parse(null, "{\"x\": {\"sum\": null}}"));
+    assertThrows(ApiException.class, () -> parse(null, "{\"x\": {\"sum\": \"a\", \"max\": \"a\"}}"));
+    assertThrows(ApiException.class, () -> parse(null, "{\"x\": {\"sum\": \"id\"}}"));
+    assertThrows(ApiException.class, () -> parse("id", "{\"x\": {\"count\": null}}"));
+    assertThrows(ApiException.class,
+        () -> Aggregation.parse(Collections.nCopies(11, "a"), JsonUtil.readJsonString("{\"x\": {\"count\": null}}")));
+  }
+
+}
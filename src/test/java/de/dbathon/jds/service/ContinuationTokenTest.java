@@ -0,0 +1,29 @@
+package de.dbathon.jds.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import de.dbathon.jds.util.JsonList;
+
+public class ContinuationTokenTest {
+
+  @Test
+  void testEncodeDecode() {
+    final String token = new ContinuationToken(new JsonList().addElement("a/bä").addElement(null)).encode();
+    final ContinuationToken decoded = ContinuationToken.decode(token);
+    assertEquals("a/bä", decoded.getString(0));
+    assertNull(decoded.getString(1));
+    assertNull(decoded.getString(2));
+  }
+
+  @Test
+  void testInvalid() {
+    assertThrows(ApiException.class, () -> ContinuationToken.decode("not base64!"));
+    // valid base64, but no json array
+    assertThrows(ApiException.class, () -> ContinuationToken.decode("e30"));
+  }
+
+}
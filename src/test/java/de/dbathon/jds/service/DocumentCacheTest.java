@@ -0,0 +1,59 @@
+package de.dbathon.jds.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+public class DocumentCacheTest {
+
+  private DocumentCache createCache(final int maxEntries, final long maxBytes) {
+    final DocumentCache cache = new DocumentCache();
+    cache.maxEntries = maxEntries;
+    cache.maxBytes = maxBytes;
+    return cache;
+  }
+
+  @Test
+  void testVersion() {
+    final DocumentCache cache = createCache(10, 1000);
+    cache.put(1, "a", "10", new byte[] { 1 });
+    assertArrayEquals(new byte[] { 1 }, cache.get(1, "a", "10"));
+    assertNull(cache.get(1, "a", "11"));
+    assertNull(cache.get(2, "a", "10"));
+
+    assertEquals("10", cache.getVersion(1, "a"));
+    assertNull(cache.getVersion(2, "a"));
+
+    cache.invalidate(1, "a");
+    assertNull(cache.get(1, "a", "10"));
+    assertNull(cache.getVersion(1, "a"));
+    assertEquals(1, cache.getHits());
+    assertEquals(3, cache.getMisses());
+  }
+
+  @Test
+  void testEviction() {
+    final DocumentCache cache = createCache(3, 10);
+    cache.put(1, "a", "10", new byte[4]);
+    cache.put(1, "b", "10", new byte[4]);
+    // access a, so that b is the least recently used entry
+    cache.get(1, "a", "10");
+    cache.put(1, "c", "10", new byte[4]);
+    assertNull(cache.get(1, "b", "10"));
+    assertEquals(2, cache.getSize());
+    assertEquals(8, cache.getTotalBytes());
+
+    cache.put(1, "d", "10", new byte[1]);
+    cache.put(1, "e", "10", new byte[1]);
+    assertEquals(3, cache.getSize());
+    assertNull(cache.get(1, "a", "10"));
+
+    // too large, not cached at all
+    cache.put(1, "f", "10", new byte[11]);
+    assertNull(cache.get(1, "f", "10"));
+    assertEquals(6, cache.getTotalBytes());
+  }
+
+}
@@ -0,0 +1,61 @@
+package de.dbathon.jds.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import de.dbathon.jds.util.JsonList;
+import de.dbathon.jds.util.JsonStringNumber;
+import de.dbathon.jds.util.JsonUtil;
+
+public class DocumentOrderTest {
+
+  private DocumentOrder parse(final String json) {
+    return DocumentOrder.parse(JsonUtil.readJsonString(json));
+  }
+
+  private QueryBuilder after(final DocumentOrder order, final Object... tokenValues) {
+    final QueryBuilder queryBuilder = new QueryBuilder();
+    final JsonList values = new JsonList();
+    values.addAll(Arrays.asList(tokenValues));
+    queryBuilder.withAnd(() -> order.addAfterCondition(queryBuilder, values));
+    return queryBuilder;
+  }
+
+  @Test
+  void testDefault() {
+    assertEquals("order by database_id, id", DocumentOrder.DEFAULT.getOrderBy());
+    assertEquals("id > ?", after(DocumentOrder.DEFAULT, "a").getString());
+    assertThrows(ApiException.class, () -> after(DocumentOrder.DEFAULT, new JsonStringNumber("1")));
+  }
+
+  @Test
+  void testTyped() {
+    final DocumentOrder order = parse("[{\"key\": \"a\", \"type\": \"string\", \"direction\": \"desc\"}]");
+    assertEquals("order by database_id, (data->'a' #>> '{}') collate \"C\" desc, id desc", order.getOrderBy());
+    assertEquals(Arrays.asList("coalesce(jsonb_typeof(data->'a'), 'undefined') = 'string'"),
+        order.getTypeConditions());
+    final QueryBuilder queryBuilder = after(order, "x", "id1");
+    assertEquals("((data->'a' #>> '{}'), id) < ((? collate \"C\"), ?)", queryBuilder.getString());
+    assertArrayEquals(new Object[] { "x", "id1" }, queryBuilder.getParametersArray());
+
+    // mixed directions
+    final DocumentOrder mixed =
+        parse("[{\"key\": \"a\", \"type\": \"number\"}, {\"key\": \"b\", \"type\": \"string\", \"direction\": \"desc\"}]");
+    assertEquals("((data->'a') > ?::jsonb) or (((data->'a') = ?::jsonb) and ((data->'b' #>> '{}') < (? collate \"C\"))) "
+        + "or (((data->'a') = ?::jsonb) and ((data->'b' #>> '{}') = (? collate \"C\")) and (id < ?))",
+        after(mixed, new JsonStringNumber("1"), "x", "id1").getString());
+
+    // id is unique, so it ends the order
+    assertEquals("order by database_id, id desc", parse("[{\"key\": \"id\", \"direction\": \"desc\"}, "
+        + "{\"key\": \"a\", \"type\": \"string\"}]").getOrderBy());
+
+    assertThrows(ApiException.class, () -> parse("[{\"key\": \"a\"}]"));
+    assertThrows(ApiException.class, () -> parse("[{\"key\": \"a'\", \"type\": \"string\"}]"));
+  }
+
+}
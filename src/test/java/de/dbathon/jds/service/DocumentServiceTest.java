@@ -0,0 +1,65 @@
+package de.dbathon.jds.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import de.dbathon.jds.util.JsonList;
+import de.dbathon.jds.util.JsonUtil;
+
+public class DocumentServiceTest {
+
+  @Test
+  void testToJsonParameters() {
+    // e.g. for id = any(?) and data @> any(?::jsonb[])
+    final Object[] parameters = { 42, new String[] { "a", "b" }, new String[] { "{\"x\":1}" }, null };
+    assertEquals("[42,[\"a\",\"b\"],[\"{\\\"x\\\":1}\"],null]",
+        JsonUtil.toJsonString(DocumentService.toJsonParameters(parameters)));
+  }
+
+  @Test
+  void testIsPurgedPosition() {
+    assertFalse(DocumentService.isPurgedPosition(new JsonList().addElement("15"), null));
+    assertTrue(DocumentService.isPurgedPosition(new JsonList().addElement("14"), "15"));
+    // all tombstones with version 15 were seen
+    assertFalse(DocumentService.isPurgedPosition(new JsonList().addElement("15"), "15"));
+    assertFalse(DocumentService.isPurgedPosition(new JsonList().addElement("16"), "15"));
+    assertFalse(DocumentService.isPurgedPosition(new JsonList().addElement("210"), "1z"));
+
+    // tombstones with version 15 and an id after b might be purged
+    assertTrue(DocumentService.isPurgedPosition(new JsonList().addElement("15").addElement("b"), "15"));
+    assertTrue(DocumentService.isPurgedPosition(new JsonList().addElement("14").addElement("b"), "15"));
+    assertFalse(DocumentService.isPurgedPosition(new JsonList().addElement("16").addElement("b"), "15"));
+  }
+
+  @Test
+  void testGetPlanRows() {
+    assertEquals(1234, DocumentService.getPlanRows(JsonUtil.readJsonString(
+        "[{\"Plan\": {\"Node Type\": \"Index Scan\", \"Plan Rows\": 1234, \"Plans\": [{\"Plan Rows\": 5}]}}]")));
+    assertEquals(0, DocumentService.getPlanRows(JsonUtil.readJsonString("[{\"Plan\": {\"Plan Rows\": 0}}]")));
+    assertThrows(IllegalStateException.class, () -> DocumentService.getPlanRows(JsonUtil.readJsonString("[]")));
+    assertThrows(IllegalStateException.class,
+        () -> DocumentService.getPlanRows(JsonUtil.readJsonString("[{\"Plan\": {}}]")));
+    assertThrows(IllegalStateException.class,
+        () -> DocumentService.getPlanRows(JsonUtil.readJsonString("{\"Plan\": {\"Plan Rows\": 1}}")));
+  }
+
+  @Test
+  void testGetUtf8Length() {
+    final String[] strings = { "", "abc", "\u00e4\u00df", "\u20ac", "\u007f\u0080\u07ff\u0800\uffff",
+        // a surrogate pair (U+1F600)
+        "a\ud83d\ude00b",
+        // unpaired surrogates
+        "\ud83d", "\ude00", "a\ud83db", "\ude00\ud83d", "\ud83d\ud83d\ude00" };
+    for (final String string : strings) {
+      assertEquals(string.getBytes(StandardCharsets.UTF_8).length, DocumentService.getUtf8Length(string), string);
+    }
+    assertEquals(4, DocumentService.getUtf8Length("\ud83d\ude00"));
+  }
+
+}
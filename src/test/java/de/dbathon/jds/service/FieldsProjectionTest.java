@@ -0,0 +1,39 @@
+package de.dbathon.jds.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+public class FieldsProjectionTest {
+
+  @Test
+  void testExpression() {
+    assertEquals("(case when data->'a'->'b' is null and data->'a'->'c' is null then '{}'::jsonb "
+        + "else jsonb_build_object('a', "
+        + "(case when data->'a'->'b' is null then '{}'::jsonb else jsonb_build_object('b', data->'a'->'b') end || "
+        + "case when data->'a'->'c' is null then '{}'::jsonb else jsonb_build_object('c', data->'a'->'c') end)) end || "
+        + "case when data->'d' is null then '{}'::jsonb else jsonb_build_object('d', data->'d') end)",
+        FieldsProjection.getExpression(Arrays.asList("a.b", "d", "a.c")));
+
+    // if data.a is missing, a scalar or has no b, then a is left out (instead of {"a":{}})
+    assertEquals("(case when data->'a'->'b'->'c' is null then '{}'::jsonb else jsonb_build_object('a', "
+        + "(case when data->'a'->'b'->'c' is null then '{}'::jsonb else jsonb_build_object('b', "
+        + "(case when data->'a'->'b'->'c' is null then '{}'::jsonb else jsonb_build_object('c', data->'a'->'b'->'c') "
+        + "end)) end)) end)", FieldsProjection.getExpression(Collections.singletonList("a.b.c")));
+
+    // the outer key wins
+    assertEquals(FieldsProjection.getExpression(Collections.singletonList("a")),
+        FieldsProjection.getExpression(Arrays.asList("a.b", "a")));
+    assertEquals(FieldsProjection.getExpression(Collections.singletonList("a")),
+        FieldsProjection.getExpression(Arrays.asList("a", "a.b")));
+
+    assertThrows(ApiException.class, () -> FieldsProjection.getExpression(Collections.singletonList("a[0]")));
+    assertThrows(ApiException.class, () -> FieldsProjection.getExpression(Collections.singletonList("a'")));
+    assertThrows(ApiException.class, () -> FieldsProjection.getExpression(Collections.emptyList()));
+  }
+
+}
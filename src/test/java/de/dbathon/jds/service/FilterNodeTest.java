@@ -0,0 +1,138 @@
+package de.dbathon.jds.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import de.dbathon.jds.util.JsonList;
+import de.dbathon.jds.util.JsonMap;
+import de.dbathon.jds.util.JsonStringNumber;
+
+public class FilterNodeTest {
+
+  private FilterNode node(final String key, final String operator, final Object rightHandSide) {
+    return FilterOperator.FILTER_OPERATORS.get(operator).toFilterNode(key, rightHandSide);
+  }
+
+  private QueryBuilder render(final FilterNode node) {
+    final QueryBuilder queryBuilder = new QueryBuilder();
+    queryBuilder.withAnd(() -> node.simplify().render(queryBuilder));
+    return queryBuilder;
+  }
+
+  private Object[] resolvedParameters(final QueryBuilder queryBuilder) {
+    return Arrays.stream(queryBuilder.getParametersArray())
+        .map(parameter -> ((FilterParameter) parameter).resolve(value -> value)).toArray();
+  }
+
+  @Test
+  void testMergeEquals() {
+    final QueryBuilder queryBuilder = render(new FilterNode.AndNode(Arrays.asList(node("a.b", "=", "x"),
+        new FilterNode.AndNode(Arrays.asList(node("a.c", "=", new JsonStringNumber("1")), node("d", "=", true))))));
+    assertEquals("data @> ?::jsonb", queryBuilder.getString());
+    assertArrayEquals(new Object[] { "{\"a\":{\"b\":\"x\",\"c\":1},\"d\":true}" }, resolvedParameters(queryBuilder));
+
+    // values for the same key are not merged (not even equal ones)
+    assertEquals("(data @> ?::jsonb) and (data @> ?::jsonb)",
+        render(new FilterNode.AndNode(Arrays.asList(node("a", "=", "x"), node("a", "=", "y")))).getString());
+    assertEquals("(data @> ?::jsonb) and (data @> ?::jsonb)",
+        render(new FilterNode.AndNode(Arrays.asList(node("a", "=", "x"), node("a", "=", "x")))).getString());
+  }
+
+  @Test
+  void testOrOfEquals() {
+    final QueryBuilder queryBuilder =
+        render(new FilterNode.OrNode(Arrays.asList(node("a", "=", "x"), node("a", "in", Arrays.asList("y", "z")))));
+    assertEquals("data @> any(?::jsonb[])", queryBuilder.getString());
+    assertArrayEquals(new String[] { "{\"a\":\"x\"}", "{\"a\":\"y\"}", "{\"a\":\"z\"}" },
+        (String[]) resolvedParameters(queryBuilder)[0]);
+
+    final QueryBuilder idQueryBuilder =
+        render(new FilterNode.OrNode(Arrays.asList(node("id", "=", "a"), node("id", "=", "b"))));
+    assertEquals("id = any(?)", idQueryBuilder.getString());
+    assertArrayEquals(new String[] { "a", "b" }, (String[]) resolvedParameters(idQueryBuilder)[0]);
+  }
+
+  @Test
+  void testConstantFolding() {
+    assertSame(FilterNode.FALSE,
+        new FilterNode.AndNode(Arrays.asList(node("a", "<", "x"), node("id", "is", "number"))).simplify());
+    assertSame(FilterNode.TRUE,
+        new FilterNode.OrNode(Arrays.asList(node("a", "<", "x"), node("version", "is", "string"))).simplify());
+    // the values are not intersected, that would depend on the values
+    assertEquals("(id = ?) and (id = ?)",
+        render(new FilterNode.AndNode(Arrays.asList(node("id", "=", "a"), node("id", "=", "b")))).getString());
+    assertSame(FilterNode.FALSE, node("id", "in", new JsonList()).simplify());
+    assertSame(FilterNode.TRUE, new FilterNode.ContainsNode(new JsonMap()).simplify());
+
+    // not not
+    final FilterNode leaf = node("a", ">=", "x");
+    assertSame(leaf, new FilterNode.NotNode(new FilterNode.NotNode(leaf)).simplify());
+    assertEquals("not (coalesce(jsonb_typeof(data->'a'), 'undefined') = 'string' and (data->'a' #>> '{}') >= (? collate \"C\"))",
+        render(new FilterNode.NotNode(leaf)).getString());
+  }
+
+  @Test
+  void testArrayKeys() {
+    // any element of the array
+    QueryBuilder queryBuilder = render(node("items[*].sku", "=", "x"));
+    assertEquals("data @> ?::jsonb", queryBuilder.getString());
+    assertArrayEquals(new Object[] { "{\"items\":[{\"sku\":\"x\"}]}" }, resolvedParameters(queryBuilder));
+
+    // a specific element: containment as prefilter and the exact check
+    queryBuilder = render(node("items[0].tags[*]", "=", "x"));
+    assertEquals("(data @> ?::jsonb) and (coalesce(data->'items'->0 @> ?::jsonb, false))", queryBuilder.getString());
+    assertArrayEquals(new Object[] { "{\"items\":[{\"tags\":[\"x\"]}]}", "{\"tags\":[\"x\"]}" },
+        resolvedParameters(queryBuilder));
+
+    queryBuilder = render(node("a[1]", "in", Arrays.asList("x", "y")));
+    assertEquals("(data @> any(?::jsonb[])) and (coalesce(data->'a'->1 in (?::jsonb, ?::jsonb), false))",
+        queryBuilder.getString());
+
+    assertThrows(ApiException.class, () -> node("items[*].tags[0]", "=", "x"));
+    assertThrows(ApiException.class, () -> node("items[*]", "<", "x"));
+  }
+
+  @Test
+  void testPrefix() {
+    QueryBuilder queryBuilder = render(node("id", "prefix", "ab"));
+    assertEquals("id >= ? and id < ?", queryBuilder.getString());
+    assertArrayEquals(new Object[] { "ab", "ac" }, resolvedParameters(queryBuilder));
+
+    queryBuilder = render(node("a", "prefix", "x\uDBFF\uDFFF"));
+    assertArrayEquals(new Object[] { "x\uDBFF\uDFFF", "y" }, resolvedParameters(queryBuilder));
+
+    assertThrows(ApiException.class, () -> resolvedParameters(render(node("id", "prefix", ""))));
+  }
+
+  @Test
+  void testJsonPathParameter() {
+    final Object placeholder = new String("$.a");
+    final FilterParameter parameter = FilterParameter.jsonPath(placeholder);
+    assertEquals("$.b", parameter.resolve(value -> value == placeholder ? "$.b" : value));
+    // blank paths are only detected when resolving, so it does not matter whether the filter was cached
+    final ApiException e =
+        assertThrows(ApiException.class, () -> parameter.resolve(value -> value == placeholder ? " " : value));
+    assertEquals("invalid operand for jsonpath: \" \"", e.getMessage());
+  }
+
+  @Test
+  void testMergeContains() {
+    final JsonMap a = new JsonMap().add("a", new JsonMap().add("b", 1)).add("c", new JsonList().addElement(1));
+    final JsonMap b = new JsonMap().add("a", new JsonMap().add("d", 2)).add("c", new JsonList().addElement(2));
+    assertEquals(
+        new JsonMap().add("a", new JsonMap().add("b", 1).add("d", 2)).add("c",
+            new JsonList().addElement(1).addElement(2)),
+        FilterNode.mergeContains(a, b));
+    assertNull(FilterNode.mergeContains(a, new JsonMap().add("a", "x")));
+    assertNull(FilterNode.mergeContains(new JsonMap().add("a", null), new JsonMap().add("a", null)));
+    assertNull(FilterNode.mergeContains(new JsonMap().add("a", "x"), new JsonMap().add("a", "x")));
+  }
+
+}
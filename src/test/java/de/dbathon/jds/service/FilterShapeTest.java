@@ -0,0 +1,61 @@
+package de.dbathon.jds.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import de.dbathon.jds.util.JsonList;
+import de.dbathon.jds.util.JsonMap;
+import de.dbathon.jds.util.JsonUtil;
+
+public class FilterShapeTest {
+
+  private FilterShape shape(final String filtersJson) {
+    return FilterShape.of(JsonUtil.readJsonString(filtersJson));
+  }
+
+  @Test
+  void testShape() {
+    final FilterShape shape = shape("[\"or\", {\"a\": \"x\", \"b\": {\"<\": 1}}, {\"c\": {\"is\": \"string\"}}]");
+    assertEquals(shape.key, shape("[\"or\", {\"a\": \"y\", \"b\": {\"<\": 2}}, {\"c\": {\"is\": \"string\"}}]").key);
+    assertEquals(Arrays.asList("x", "1"), Arrays.asList(shape.literals.get(0), shape.literals.get(1).toString()));
+
+    // types, operators and the right hand side of "is" are part of the shape
+    assertNotEquals(shape.key, shape("[\"or\", {\"a\": 1, \"b\": {\"<\": 2}}, {\"c\": {\"is\": \"string\"}}]").key);
+    assertNotEquals(shape.key, shape("[\"and\", {\"a\": \"x\", \"b\": {\"<\": 1}}, {\"c\": {\"is\": \"string\"}}]").key);
+    assertNotEquals(shape.key, shape("[\"or\", {\"a\": \"x\", \"b\": {\"<\": 1}}, {\"c\": {\"is\": \"number\"}}]").key);
+    assertNotEquals(shape("{\"a\": {\"in\": [\"x\"]}}").key, shape("{\"a\": {\"in\": [\"x\", \"y\"]}}").key);
+    assertNotEquals(shape("{\"a\": true}").key, shape("{\"a\": false}").key);
+
+    // the entries of "jsonpath" are literals
+    assertEquals(shape("[\"jsonpath\", \"$.a ? (@ > 1)\"]").key, shape("[\"jsonpath\", \"$.b\"]").key);
+  }
+
+  @Test
+  void testPlaceholders() {
+    final Object filters = JsonUtil.readJsonString("[\"contains\", {\"a\": [\"x\", \"x\"]}]");
+    final FilterShape shape = FilterShape.of(filters);
+    final IdentityHashMap<Object, Integer> placeholderIndexes = new IdentityHashMap<>();
+    final Object placeholderFilters = FilterShape.createPlaceholderFilters(filters, placeholderIndexes);
+    assertEquals(filters, placeholderFilters);
+    assertEquals(2, placeholderIndexes.size());
+
+    final List<?> values = (List<?>) ((JsonMap) ((JsonList) placeholderFilters).get(1)).get("a");
+    assertNotSame(values.get(0), values.get(1));
+
+    // the parameters can be resolved for other literals
+    final CompiledFilter compiledFilter = new CompiledFilter("data @> ?::jsonb",
+        Arrays.asList(FilterParameter.json(((JsonList) placeholderFilters).get(1))), placeholderIndexes);
+    assertArrayEquals(new Object[] { "{\"a\":[\"x\",\"x\"]}" }, compiledFilter.resolveParameters(shape.literals).toArray());
+    assertArrayEquals(new Object[] { "{\"a\":[\"y\",\"z\"]}" },
+        compiledFilter.resolveParameters(Arrays.asList("y", "z")).toArray());
+  }
+
+}
@@ -0,0 +1,35 @@
+package de.dbathon.jds.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import de.dbathon.jds.service.IndexService.IndexType;
+
+public class IndexServiceTest {
+
+  @Test
+  void testIndexName() {
+    final String name = IndexService.getIndexName("a.b", IndexType.STRING);
+    assertTrue(name.matches("jds_idx_string_[0-9a-f]{20}"), name);
+    assertEquals(name, IndexService.getIndexName("a.b", IndexType.STRING));
+    assertNotEquals(name, IndexService.getIndexName("a.c", IndexType.STRING));
+    assertNotEquals(name, IndexService.getIndexName("a.b", IndexType.NUMBER));
+  }
+
+  @Test
+  void testIndexDefinition() {
+    assertEquals("on jds_document (database_id, (data->'a'->'b' #>> '{}') collate \"C\") where deleted_at is null "
+        + "and coalesce(jsonb_typeof(data->'a'->'b'), 'undefined') = 'string'",
+        IndexService.getIndexDefinition("a.b", IndexType.STRING));
+    assertEquals("on jds_document (database_id, (data->'a'->0)) where deleted_at is null "
+        + "and coalesce(jsonb_typeof(data->'a'->0), 'undefined') = 'number'",
+        IndexService.getIndexDefinition("a[0]", IndexType.NUMBER));
+    assertEquals("on jds_document using gin ((data->'a' #>> '{}') gin_trgm_ops) where deleted_at is null "
+        + "and coalesce(jsonb_typeof(data->'a'), 'undefined') = 'string'",
+        IndexService.getIndexDefinition("a", IndexType.TRIGRAM));
+  }
+
+}
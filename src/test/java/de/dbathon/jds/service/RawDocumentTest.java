@@ -0,0 +1,48 @@
+package de.dbathon.jds.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import de.dbathon.jds.util.JsonUtil;
+
+public class RawDocumentTest {
+
+  private String write(final RawDocument document) throws IOException {
+    final StringWriter writer = new StringWriter();
+    document.writeTo(writer);
+    return writer.toString();
+  }
+
+  @Test
+  void testWriteTo() throws IOException {
+    assertEquals("{\"id\":\"a\",\"version\":\"10\"}", write(new RawDocument("a", "10", "{}")));
+    assertEquals("{\"id\":\"a\",\"version\":\"10\"}", write(new RawDocument("a", "10", "{ }")));
+    assertEquals("{\"id\":\"a\",\"version\":\"1z\",\"x\": 1, \"y\": {\"z\": [1, 2]}}",
+        write(new RawDocument("a", "1z", "{\"x\": 1, \"y\": {\"z\": [1, 2]}}")));
+    assertEquals("{\"id\":\"a\\\"\\\\\\n\\u0001\",\"version\":\"10\"}",
+        write(new RawDocument("a\"\\\n\u0001", "10", "{}")));
+  }
+
+  @Test
+  void testWriteToMatchesJsonMap() throws IOException {
+    final RawDocument document = new RawDocument("doc-1", "2ab", "{\"a\": \"b\", \"c\": [true, null, 1.5]}");
+    assertEquals(document.toJsonMap(), JsonUtil.readJsonString(write(document)));
+  }
+
+  @Test
+  void testJsonBytes() throws IOException {
+    final RawDocument document = new RawDocument("a", "10", "{\"x\": \"\u00e4\"}");
+    final byte[] jsonBytes = document.getJsonBytes();
+    assertEquals(write(document), new String(jsonBytes, StandardCharsets.UTF_8));
+
+    final RawDocument fromBytes = RawDocument.fromJsonBytes("a", "10", jsonBytes);
+    assertEquals(write(document), write(fromBytes));
+    assertEquals(document.toJsonMap(), fromBytes.toJsonMap());
+  }
+
+}
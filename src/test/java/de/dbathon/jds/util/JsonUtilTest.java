@@ -0,0 +1,31 @@
+package de.dbathon.jds.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.StringReader;
+
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParsingException;
+
+import org.junit.jupiter.api.Test;
+
+public class JsonUtilTest {
+
+  private Object read(final String json, final JsonUtil.Limits limits) {
+    try (final JsonParser parser = JsonUtil.PROVIDER.createParser(new StringReader(json))) {
+      return JsonUtil.readFromParser(parser, limits);
+    }
+  }
+
+  @Test
+  void testMaxDepth() {
+    final JsonUtil.Limits limits = new JsonUtil.Limits(3);
+    assertEquals("{\"a\":{\"b\":[1]}}", JsonUtil.toJsonString(read("{\"a\": {\"b\": [1]}}", limits)));
+    assertThrows(JsonParsingException.class, () -> read("{\"a\": {\"b\": [[1]]}}", limits));
+    assertThrows(JsonParsingException.class, () -> read("[[[{}]]]", limits));
+    // scalars do not count
+    assertEquals("\"a\"", JsonUtil.toJsonString(read("\"a\"", new JsonUtil.Limits(0))));
+  }
+
+}